@@ -0,0 +1,305 @@
+package com.kenlai.MKLRedis;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Builds a CachingStore from a file of commands, one per line, in the same
+ * format the server accepts (e.g. {@code SET key value}, {@code ZADD key score
+ * member}). Used to warm the store before the server starts accepting
+ * connections.
+ * <p>
+ * The input is cut into batches of lines that are tokenized in parallel across
+ * all cores, while the calling thread applies the finished batches in file
+ * order, bypassing the request queue. Only a few batches per core are parsed
+ * ahead at any time, so memory stays bounded however large the input is. A
+ * file is first scanned once to count its lines, so the store can be
+ * presized to the record count.
+ */
+public class BulkLoader {
+    private boolean verbose = Boolean.getBoolean("verbose");
+
+    /** Smallest chunk worth handing to a separate thread. */
+    private static final long MIN_CHUNK = 1L << 20;
+    /** Largest chunk; bounds the parsed lines held in memory per batch. */
+    private static final long MAX_CHUNK = 16L << 20;
+    /** Lines per batch when reading a stream. */
+    private static final int STREAM_BATCH = 65536;
+    /** Batches parsed ahead of the one being applied. */
+    private static final int PARSE_AHEAD =
+            Runtime.getRuntime().availableProcessors() * 2;
+
+    private int minimumSize;
+    private long records;
+    private long errors;
+
+    /**
+     * @param minimumSize initial capacity of the store if there are fewer
+     *            records than this
+     */
+    public BulkLoader(int minimumSize) {
+        this.minimumSize = minimumSize;
+    }
+
+    /**
+     * @param source path of the file to load, or "-" to read standard input
+     */
+    public CachingStore load(String source) throws IOException {
+        if ("-".equals(source)) {
+            return load(System.in);
+        }
+        return load(Paths.get(source));
+    }
+
+    /**
+     * Loads a file by memory-mapping it in newline-aligned chunks.
+     */
+    public CachingStore load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            List<long[]> chunks = split(channel);
+            long lines = chunks.parallelStream()
+                    .mapToLong(c -> countLines(channel, c[0], c[1]))
+                    .sum();
+            Iterator<long[]> it = chunks.iterator();
+            return applyInOrder(lines, new Iterator<Supplier<List<String[]>>>() {
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Supplier<List<String[]>> next() {
+                    long[] c = it.next();
+                    return () -> parseChunk(channel, c[0], c[1]);
+                }
+            });
+        }
+    }
+
+    /**
+     * Loads a stream, such as a pipe, that cannot be mapped. Lines are read
+     * sequentially and tokenized in parallel batches. The record count is
+     * not known up front, so the store starts at minimumSize and grows.
+     */
+    public CachingStore load(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+        try {
+            return applyInOrder(0, new Iterator<Supplier<List<String[]>>>() {
+                private List<String> batch = read();
+
+                @Override
+                public boolean hasNext() {
+                    return !batch.isEmpty();
+                }
+
+                @Override
+                public Supplier<List<String[]>> next() {
+                    if (batch.isEmpty()) {
+                        throw new NoSuchElementException();
+                    }
+                    List<String> lines = batch;
+                    batch = read();
+                    return () -> parseLines(lines);
+                }
+
+                private List<String> read() {
+                    List<String> lines = new ArrayList<>(STREAM_BATCH);
+                    try {
+                        String line;
+                        while (lines.size() < STREAM_BATCH
+                                && (line = reader.readLine()) != null) {
+                            lines.add(line);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return lines;
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return number of records applied by the last load
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    /**
+     * @return number of records in the last load that were rejected
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * Cut the file into roughly equal chunks, each ending just after a
+     * newline so that no line straddles two chunks.
+     *
+     * @return list of {start, length} pairs
+     */
+    private List<long[]> split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        int parallelism = Runtime.getRuntime().availableProcessors() * 4;
+        long target = Math.min(MAX_CHUNK, Math.max(MIN_CHUNK, size / parallelism));
+        List<long[]> chunks = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + target);
+            // advance end past the next newline
+            scan:
+            while (end < size) {
+                probe.clear();
+                int n = channel.read(probe, end);
+                for (int i = 0; i < n; i++) {
+                    if (probe.get(i) == '\n') {
+                        end += i + 1;
+                        break scan;
+                    }
+                }
+                end += n;
+            }
+            chunks.add(new long[] {start, end - start});
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * @return number of lines in the chunk, counting an unterminated last one
+     */
+    private static long countLines(FileChannel channel, long start, long length) {
+        MappedByteBuffer buffer = map(channel, start, length);
+        long lines = 0;
+        byte last = '\n';
+        while (buffer.hasRemaining()) {
+            last = buffer.get();
+            if (last == '\n') {
+                lines++;
+            }
+        }
+        return last == '\n' ? lines : lines + 1;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long start, long length) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to map chunk at " + start, e);
+        }
+    }
+
+    private List<String[]> parseChunk(FileChannel channel, long start, long length) {
+        MappedByteBuffer buffer = map(channel, start, length);
+        List<String> lines = new ArrayList<>((int) (length / 32));
+        byte[] line = new byte[256];
+        int len = 0;
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                lines.add(new String(line, 0, len, StandardCharsets.UTF_8));
+                len = 0;
+                continue;
+            }
+            if (len == line.length) {
+                byte[] grown = new byte[len * 2];
+                System.arraycopy(line, 0, grown, 0, len);
+                line = grown;
+            }
+            line[len++] = b;
+        }
+        if (len > 0) {
+            lines.add(new String(line, 0, len, StandardCharsets.UTF_8));
+        }
+        return parseLines(lines);
+    }
+
+    private List<String[]> parseLines(List<String> lines) {
+        List<String[]> parsed = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            if (line.isEmpty()) {
+                continue;
+            }
+            String[] tokens = CommandProcessor.tokenize(line);
+            if (tokens == null) {
+                verbosePrintln("invalid input characters: " + line);
+                // keep position so the error is counted when applied
+                tokens = new String[0];
+            }
+            parsed.add(tokens);
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses batches in parallel, at most PARSE_AHEAD at a time, and applies
+     * them in order as they complete.
+     *
+     * @param expectedRecords record count to presize the store for
+     */
+    private CachingStore applyInOrder(long expectedRecords,
+            Iterator<Supplier<List<String[]>>> batches) {
+        int size = (int) Math.min(Integer.MAX_VALUE - 8,
+                Math.max(minimumSize, expectedRecords));
+        CachingStore store = new CachingStore(size);
+        CommandProcessor processor = new CommandProcessor(store);
+        records = 0;
+        errors = 0;
+        ArrayDeque<CompletableFuture<List<String[]>>> parsing = new ArrayDeque<>();
+        while (batches.hasNext() || !parsing.isEmpty()) {
+            while (parsing.size() < PARSE_AHEAD && batches.hasNext()) {
+                parsing.add(CompletableFuture.supplyAsync(batches.next()));
+            }
+            List<String[]> batch;
+            try {
+                batch = parsing.poll().join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+            for (String[] tokens : batch) {
+                String result = tokens.length == 0 ? null : processor.execute(tokens);
+                if (result == null || result.startsWith("ERROR")) {
+                    errors++;
+                } else {
+                    records++;
+                }
+            }
+        }
+        return store;
+    }
+
+    private void verbosePrintln(String msg) {
+        if (verbose) {
+            System.out.println(msg);
+        }
+    }
+}
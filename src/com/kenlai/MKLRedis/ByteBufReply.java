@@ -0,0 +1,207 @@
+package com.kenlai.MKLRedis;
+
+import java.nio.charset.StandardCharsets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Encodes the reply straight into a ByteBuf ready to be written to the
+ * channel, bypassing String building and the StringEncoder.
+ * <p>
+ * Constant replies (OK, (nil), and integers below SHARED_INTEGERS) are
+ * encoded once at startup into unreleasable buffers, and handed out as
+ * slices that share their memory. Everything else is written into a buffer
+ * from the allocator: integers digit by digit, and lists element by element
+ * as the store walks its data.
+ */
+class ByteBufReply implements Reply {
+    private static final int SHARED_INTEGERS = 10000;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private static final Shared sharedPlain = new Shared(false);
+    private static final Shared sharedCrLf = new Shared(true);
+
+    private final ByteBufAllocator alloc;
+    private final boolean addCrLf;
+    private final Shared shared;
+
+    private ByteBuf buf;
+    private ByteBuf result;
+    private boolean first;
+
+    /**
+     * @param addCrLf whether to terminate the reply with \r\n
+     */
+    ByteBufReply(ByteBufAllocator alloc, boolean addCrLf) {
+        this.alloc = alloc;
+        this.addCrLf = addCrLf;
+        this.shared = addCrLf ? sharedCrLf : sharedPlain;
+    }
+
+    /**
+     * The caller owns the returned buffer and must write or release it.
+     *
+     * @return the encoded reply, or null if nothing was written
+     */
+    ByteBuf result() {
+        return result;
+    }
+
+    @Override
+    public void ok() {
+        setResult(shared.ok.duplicate());
+    }
+
+    @Override
+    public void nil() {
+        setResult(shared.nil.duplicate());
+    }
+
+    @Override
+    public void integer(long value) {
+        if (value >= 0 && value < SHARED_INTEGERS) {
+            int i = (int) value;
+            setResult(shared.integers.slice(shared.integerOffsets[i],
+                    shared.integerOffsets[i + 1] - shared.integerOffsets[i]));
+            return;
+        }
+        ByteBuf out = alloc.buffer(22);
+        writeLong(out, value);
+        terminate(out);
+        setResult(out);
+    }
+
+    @Override
+    public void string(String value) {
+        if (value == null) {
+            nil();
+            return;
+        }
+        ByteBuf out = alloc.buffer(value.length() + 2);
+        ByteBufUtil.writeUtf8(out, value);
+        terminate(out);
+        setResult(out);
+    }
+
+    @Override
+    public void error(String message) {
+        releaseBuf();
+        ByteBuf out = alloc.buffer(message.length() + 8);
+        out.writeBytes(shared.errorPrefix);
+        ByteBufUtil.writeUtf8(out, message);
+        terminate(out);
+        setResult(out);
+    }
+
+    @Override
+    public void beginList() {
+        releaseBuf();
+        buf = alloc.buffer();
+        first = true;
+    }
+
+    @Override
+    public void element(String value) {
+        if (!first) {
+            buf.writeByte(' ');
+        }
+        first = false;
+        if (value == null) {
+            buf.writeBytes(shared.nilBytes);
+        } else {
+            ByteBufUtil.writeUtf8(buf, value);
+        }
+    }
+
+    @Override
+    public void endList() {
+        terminate(buf);
+        result = buf;
+        buf = null;
+    }
+
+    private void setResult(ByteBuf out) {
+        releaseBuf();
+        result = out;
+    }
+
+    private void releaseBuf() {
+        if (buf != null) {
+            buf.release();
+            buf = null;
+        }
+        if (result != null) {
+            result.release();
+            result = null;
+        }
+    }
+
+    private void terminate(ByteBuf out) {
+        if (addCrLf) {
+            out.writeBytes(CRLF);
+        }
+    }
+
+    /**
+     * Writes the decimal digits of value without going through a String.
+     */
+    static void writeLong(ByteBuf out, long value) {
+        if (value == Long.MIN_VALUE) {
+            ByteBufUtil.writeAscii(out, Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            out.writeByte('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int start = out.writerIndex();
+        out.ensureWritable(digits);
+        for (int i = digits - 1; i >= 0; i--) {
+            out.setByte(start + i, (int) ('0' + value % 10));
+            value /= 10;
+        }
+        out.writerIndex(start + digits);
+    }
+
+    /**
+     * Replies encoded once and shared by every connection.
+     */
+    private static class Shared {
+        final ByteBuf ok;
+        final ByteBuf nil;
+        final byte[] nilBytes = "(nil)".getBytes(StandardCharsets.US_ASCII);
+        final byte[] errorPrefix = "ERROR ".getBytes(StandardCharsets.US_ASCII);
+        /** all shared integers back to back, located by integerOffsets */
+        final ByteBuf integers;
+        final int[] integerOffsets = new int[SHARED_INTEGERS + 1];
+
+        Shared(boolean addCrLf) {
+            String terminator = addCrLf ? "\r\n" : "";
+            ok = constant("OK" + terminator);
+            nil = constant("(nil)" + terminator);
+            ByteBuf all = Unpooled.directBuffer(SHARED_INTEGERS * 6);
+            for (int i = 0; i < SHARED_INTEGERS; i++) {
+                integerOffsets[i] = all.writerIndex();
+                writeLong(all, i);
+                if (addCrLf) {
+                    all.writeBytes(CRLF);
+                }
+            }
+            integerOffsets[SHARED_INTEGERS] = all.writerIndex();
+            integers = Unpooled.unreleasableBuffer(all);
+        }
+
+        private static ByteBuf constant(String s) {
+            return Unpooled.unreleasableBuffer(Unpooled.directBuffer(s.length())
+                    .writeBytes(s.getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+}
@@ -1,30 +1,110 @@
 package com.kenlai.MKLRedis;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 
 /**
  * Basic key-value store with expiration and sorted set support.
+ * <p>
+ * With tierDir set, string values that go unused for a while are moved to a
+ * {@link DiskTier}, leaving only their location in memory, and are promoted
+ * back on their next access.
  */
 public class CachingStore {
     private boolean verbose = Boolean.getBoolean("verbose");
     private boolean debug = Boolean.getBoolean("debug");
+    private boolean lazyfree = Boolean.getBoolean("lazyfree");
 
     private static final String OK = "OK";
 
     private final static Pattern integerPattern =
             Pattern.compile("\\A[+-]?[0-9]+\\z");
 
-    private HashMap<String, Object> map;
+    private KeyspaceTable map;
 
     private HashTreeSet expirables = new HashTreeSet();
 
+    private LazyFree lazyFree =
+            new LazyFree(Integer.getInteger("lazyfreeThreshold", 64));
+
+    /**
+     * Longest line written by dump, in bytes: a request line, less the ASKING
+     * prefix MIGRATE adds and the line terminator.
+     */
+    private static final int DUMP_LINE_BYTES = CachingStoreServer.MAX_LINE_BYTES
+            - (Command.ASKING.name() + " \r\n").length();
+    /** HyperLogLog registers per PFRESTORE line written by dump. */
+    private static final int DUMP_REGISTERS = 1024;
+
+    /** Slots looked at for cold values per maintenance call. */
+    private static final int TIER_SCAN_SLOTS = 1024;
+    /** Records looked at by compaction per maintenance call. */
+    private static final int TIER_COMPACT_RECORDS = 256;
+
+    /** null unless tierDir is set */
+    private DiskTier tier;
+    private int tierIdleSeconds;
+    private int tierCursor;
+    private final long startTime = System.currentTimeMillis();
+
     public CachingStore(int size) {
-        map = new HashMap<String, Object>(size);
+        map = new KeyspaceTable(size);
+        String tierDir = System.getProperty("tierDir");
+        if (tierDir != null) {
+            tier = new DiskTier(Paths.get(tierDir),
+                    Integer.getInteger("tierSegmentBytes", 64 << 20));
+            tierIdleSeconds = Integer.getInteger("tierIdleSeconds", 300);
+        }
+    }
+
+    /**
+     * @param tier where to spill values not accessed for idleSeconds
+     */
+    CachingStore(int size, DiskTier tier, int idleSeconds) {
+        map = new KeyspaceTable(size);
+        this.tier = tier;
+        this.tierIdleSeconds = idleSeconds;
+    }
+
+    /**
+     * Does a small, bounded amount of housekeeping for the disk tier: moves
+     * string values that have not been read or written for tierIdleSeconds to
+     * disk, and compacts its segments. Meant to be called by the worker
+     * between requests, and repeatedly while it is idle.
+     *
+     * @return true if there may be more work to do right away, including
+     *         while a scan for cold values is part way through the keyspace
+     *         or waiting for a rehash to finish
+     */
+    public boolean maintenance() {
+        if (tier == null || tier.isFailed()) {
+            return false;
+        }
+        int now = (int) ((System.currentTimeMillis() - startTime) / 1000);
+        map.setClock(now);
+        int[] spilled = new int[1];
+        // a scan during a rehash only helps it along
+        boolean rehashing = map.isRehashing();
+        tierCursor = map.scan(tierCursor, TIER_SCAN_SLOTS, (key, value, lastAccess) -> {
+            if (now - lastAccess < tierIdleSeconds
+                    || !(value instanceof String || value instanceof Long)) {
+                return value;
+            }
+            SpilledValue location = tier.write(key, value);
+            if (location == null) {
+                return value;
+            }
+            spilled[0]++;
+            return location;
+        });
+        boolean compacted = tier.compact(map, TIER_COMPACT_RECORDS);
+        return spilled[0] > 0 || compacted || tierCursor != 0 || rehashing;
     }
 
     /**
@@ -56,7 +136,7 @@ public class CachingStore {
                     assert ev.isExpired();
                 }
                 iterator.remove();
-                map.remove(key);
+                release(map.remove(key));
             }
         }
     }
@@ -70,7 +150,8 @@ public class CachingStore {
      */
     public String get(String key) {
         Object value = getUnexpired(key);
-        if (value instanceof HashTreeSet) {
+        if (value instanceof HashTreeSet || value instanceof CompactHash
+                || value instanceof HyperLogLog) {
             throw new IllegalArgumentException("incorrect value type");
         }
         return value != null ? value.toString() : null;
@@ -81,6 +162,9 @@ public class CachingStore {
      */
     private Object getUnexpired(String key) {
         Object value = map.get(key);
+        if (value instanceof SpilledValue) {
+            value = promote(key, (SpilledValue) value);
+        }
         if (value instanceof ExpirableValue) {
             ExpirableValue ev = (ExpirableValue) value;
             if (ev.isExpired()) {
@@ -91,23 +175,66 @@ public class CachingStore {
         return value;
     }
 
+    /**
+     * Bring a spilled value back into memory, as it is being accessed.
+     */
+    private Object promote(String key, SpilledValue location) {
+        Object value = tier.read(location);
+        tier.free(location);
+        map.put(key, value);
+        return value;
+    }
+
     /**
      * Removes the specified key. A key is ignored if it does not exist.
      *
      * @return number of keys that were removed
      */
     public int del(String key) {
+        return remove(key, lazyfree);
+    }
+
+    /**
+     * Like DEL, but large values are only detached from the keyspace here;
+     * the memory is reclaimed by a background thread.
+     *
+     * @return number of keys that were removed
+     */
+    public int unlink(String key) {
+        return remove(key, true);
+    }
+
+    private int remove(String key, boolean lazy) {
         Object value = map.remove(key);
         if (value == null) {
             return 0;
         }
+        if (value instanceof SpilledValue) {
+            tier.free((SpilledValue) value);
+            return 1;
+        }
         // clean from expirables lists
         if (value instanceof ExpirableValue) {
             expirables.removeByMember(key);
         }
+        if (lazy) {
+            lazyFree.free(value);
+        }
         return 1;
     }
 
+    /**
+     * Dispose of a value that was dropped from the keyspace by overwrite or
+     * expiry.
+     */
+    private void release(Object value) {
+        if (value instanceof SpilledValue) {
+            tier.free((SpilledValue) value);
+        } else if (lazyfree && value != null) {
+            lazyFree.free(value);
+        }
+    }
+
     /**
      * Set key to hold the string value. If key already holds a value, it is
      * overwritten, regardless of its type. Any previous time to live associated
@@ -130,7 +257,11 @@ public class CachingStore {
             val = new ExpirableValue(val, expiresAt);
             expirables.add(new ScoredMember(expiresAt, key));
         }
-        map.put(key, val);
+        Object previous = map.put(key, val);
+        if (previous instanceof ExpirableValue && timeToLive == null) {
+            expirables.removeByMember(key);
+        }
+        release(previous);
         return OK;
     }
 
@@ -234,6 +365,9 @@ public class CachingStore {
      */
     public Integer zrank(String key, String member) {
         Object value = map.get(key);
+        if (value == null) {
+            return null;
+        }
         if (value instanceof HashTreeSet) {
             HashTreeSet sortedSet = (HashTreeSet) value;
             int rank = 0;
@@ -262,9 +396,21 @@ public class CachingStore {
      * @return list of member values
      */
     public List<String> zrange(String key, int start, int stop) {
+        List<String> list = new ArrayList<>();
+        zrange(key, start, stop, list::add);
+        return list;
+    }
+
+    /**
+     * Like {@link #zrange(String, int, int)}, but hands each member to
+     * consumer in order instead of collecting them.
+     *
+     * @return number of members visited
+     */
+    public int zrange(String key, int start, int stop, Consumer<String> consumer) {
         Object value = map.get(key);
         if (value == null) {
-            return Collections.emptyList();
+            return 0;
         }
         if (value instanceof HashTreeSet) {
             HashTreeSet sortedSet = (HashTreeSet) value;
@@ -272,7 +418,10 @@ public class CachingStore {
             int begin = start < 0 ? size + start : start;
             int end = stop < 0 ? size + stop : stop;
             if (begin >= size || end < begin) {
-                return Collections.emptyList();
+                return 0;
+            }
+            if (begin < 0) {
+                begin = 0;
             }
             if (end >= size) {
                 end = size - 1;
@@ -287,16 +436,427 @@ public class CachingStore {
                 iterator.next();
                 i++;
             }
-            List<String> list = new ArrayList<>(end - begin + 1);
             while (i <= end) {
-                list.add(iterator.next().getMember());
+                consumer.accept(iterator.next().getMember());
                 i++;
             }
-            return list;
+            return end - begin + 1;
+        }
+        throw new IllegalArgumentException("value is incorrect type");
+    }
+
+    /**
+     * Computes the union of the sorted sets at keys and stores it in
+     * destination, overwriting it. Missing keys count as empty sets.
+     *
+     * @param weights multiplier for each input set's scores; null for all 1
+     * @param aggregate how the scores of a member found in several sets are
+     *            combined
+     * @return number of elements in the resulting sorted set
+     */
+    public int zunionstore(String destination, String[] keys, long[] weights,
+            SortedSetMerge.Aggregate aggregate) {
+        return store(destination,
+                SortedSetMerge.union(snapshot(keys), weights, aggregate));
+    }
+
+    /**
+     * Computes the intersection of the sorted sets at keys and stores it in
+     * destination, overwriting it. Missing keys count as empty sets.
+     *
+     * @param weights multiplier for each input set's scores; null for all 1
+     * @param aggregate how the scores of a member are combined
+     * @return number of elements in the resulting sorted set
+     */
+    public int zinterstore(String destination, String[] keys, long[] weights,
+            SortedSetMerge.Aggregate aggregate) {
+        return store(destination,
+                SortedSetMerge.intersect(snapshot(keys), weights, aggregate));
+    }
+
+    /**
+     * Copy out the members of the sorted sets at keys, so the merge works on
+     * a stable view; destination may well be one of the inputs.
+     */
+    private List<ScoredMember[]> snapshot(String[] keys) {
+        List<ScoredMember[]> inputs = new ArrayList<>(keys.length);
+        for (String key : keys) {
+            Object value = map.get(key);
+            if (value == null) {
+                inputs.add(null);
+            } else if (value instanceof HashTreeSet) {
+                inputs.add(((HashTreeSet) value).toArray(new ScoredMember[0]));
+            } else {
+                throw new IllegalArgumentException("value is incorrect type");
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Replace destination with the fully built result in a single step.
+     */
+    private int store(String destination, HashTreeSet result) {
+        remove(destination, lazyfree);
+        if (!result.isEmpty()) {
+            map.put(destination, result);
+        }
+        return result.size();
+    }
+
+    /**
+     * Sets the specified fields to their respective values in the hash stored
+     * at key. If key does not exist, a new key holding a hash is created.
+     *
+     * @param fieldsAndValues field1, value1, field2, value2, ...
+     * @return number of fields that were added
+     */
+    public int hset(String key, String... fieldsAndValues) {
+        if (fieldsAndValues.length == 0 || fieldsAndValues.length % 2 != 0) {
+            throw new IllegalArgumentException("fields and values must pair up");
+        }
+        CompactHash hash = getHash(key, true);
+        int added = 0;
+        for (int i = 0; i < fieldsAndValues.length; i += 2) {
+            if (hash.put(fieldsAndValues[i], fieldsAndValues[i + 1])) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return the value associated with field in the hash stored at key, or
+     *         null when field or key does not exist
+     */
+    public String hget(String key, String field) {
+        CompactHash hash = getHash(key, false);
+        return hash != null ? hash.get(field) : null;
+    }
+
+    /**
+     * @return values associated with the fields, in the same order; null for
+     *         each field that does not exist
+     */
+    public List<String> hmget(String key, String... fields) {
+        CompactHash hash = getHash(key, false);
+        List<String> list = new ArrayList<>(fields.length);
+        for (String field : fields) {
+            list.add(hash != null ? hash.get(field) : null);
+        }
+        return list;
+    }
+
+    /**
+     * Increments the number stored at field in the hash stored at key by
+     * increment. Missing keys and fields are created, starting from 0.
+     *
+     * @return value after increment
+     */
+    public long hincrby(String key, String field, long increment) {
+        return getHash(key, true).incrBy(field, increment);
+    }
+
+    /**
+     * @return all fields and values of the hash stored at key, as field1,
+     *         value1, field2, value2, ...; empty if key does not exist
+     */
+    public List<String> hgetall(String key) {
+        List<String> list = new ArrayList<>();
+        hgetall(key, (field, value) -> {
+            list.add(field);
+            list.add(value);
+        });
+        return list;
+    }
+
+    /**
+     * Like {@link #hgetall(String)}, but hands each field and value to action
+     * instead of collecting them.
+     */
+    public void hgetall(String key, BiConsumer<String, String> action) {
+        CompactHash hash = getHash(key, false);
+        if (hash != null) {
+            hash.forEach(action);
+        }
+    }
+
+    /**
+     * Removes the specified fields from the hash stored at key. The key is
+     * removed once the hash is empty.
+     *
+     * @return number of fields that were removed
+     */
+    public int hdel(String key, String... fields) {
+        CompactHash hash = getHash(key, false);
+        if (hash == null) {
+            return 0;
+        }
+        int removed = 0;
+        for (String field : fields) {
+            if (hash.remove(field)) {
+                removed++;
+            }
+        }
+        if (hash.size() == 0) {
+            remove(key, false);
+        }
+        return removed;
+    }
+
+    /**
+     * @param create whether to add an empty hash if key does not exist
+     * @return hash stored at key, or null
+     */
+    private CompactHash getHash(String key, boolean create) {
+        Object value = map.get(key);
+        if (value == null) {
+            if (!create) {
+                return null;
+            }
+            CompactHash hash = new CompactHash();
+            map.put(key, hash);
+            return hash;
+        }
+        if (value instanceof CompactHash) {
+            return (CompactHash) value;
+        }
+        throw new IllegalArgumentException("value is incorrect type");
+    }
+
+    /**
+     * Adds the elements to the HyperLogLog stored at key, creating it if
+     * needed.
+     *
+     * @return 1 if the estimated cardinality may have changed, else 0
+     */
+    public int pfadd(String key, String... elements) {
+        HyperLogLog hll = getHyperLogLog(key);
+        boolean changed = false;
+        if (hll == null) {
+            hll = new HyperLogLog();
+            map.put(key, hll);
+            changed = true;
+        }
+        for (String element : elements) {
+            changed |= hll.add(element);
+        }
+        return changed ? 1 : 0;
+    }
+
+    /**
+     * For a single key, returns the cached estimate when nothing was added
+     * since the last count. For several keys, estimates the cardinality of
+     * their union, without modifying them.
+     *
+     * @return approximate number of distinct elements added to the keys
+     */
+    public long pfcount(String... keys) {
+        if (keys.length == 1) {
+            HyperLogLog hll = getHyperLogLog(keys[0]);
+            return hll != null ? hll.count() : 0L;
+        }
+        return HyperLogLog.count(mergedRegisters(keys));
+    }
+
+    /**
+     * Merges the HyperLogLogs at keys, and destination if it exists, into
+     * destination.
+     */
+    public String pfmerge(String destination, String... keys) {
+        HyperLogLog target = getHyperLogLog(destination);
+        byte[] registers = mergedRegisters(keys);
+        if (target == null) {
+            target = new HyperLogLog();
+            map.put(destination, target);
+        } else {
+            target.maxInto(registers);
+        }
+        target.setRegisters(registers);
+        return OK;
+    }
+
+    private byte[] mergedRegisters(String[] keys) {
+        byte[] registers = new byte[HyperLogLog.REGISTERS];
+        for (String key : keys) {
+            HyperLogLog hll = getHyperLogLog(key);
+            if (hll != null) {
+                hll.maxInto(registers);
+            }
+        }
+        return registers;
+    }
+
+    /**
+     * @return HyperLogLog stored at key, or null
+     */
+    private HyperLogLog getHyperLogLog(String key) {
+        Object value = map.get(key);
+        if (value == null || value instanceof HyperLogLog) {
+            return (HyperLogLog) value;
         }
         throw new IllegalArgumentException("value is incorrect type");
     }
 
+    /**
+     * Merges registers into those of the HyperLogLog at key, creating it if
+     * needed. Used by MIGRATE to copy a HyperLogLog a chunk at a time.
+     *
+     * @param offset index of the first register given
+     * @param registers one byte per register
+     */
+    public String pfrestore(String key, int offset, byte[] registers) {
+        if (offset < 0 || offset + registers.length > HyperLogLog.REGISTERS) {
+            throw new IllegalArgumentException("registers out of range");
+        }
+        HyperLogLog hll = getHyperLogLog(key);
+        if (hll == null) {
+            hll = new HyperLogLog();
+            map.put(key, hll);
+        }
+        byte[] all = new byte[HyperLogLog.REGISTERS];
+        hll.maxInto(all);
+        for (int i = 0; i < registers.length; i++) {
+            if (registers[i] < 0 || registers[i] > HyperLogLog.Q + 1) {
+                throw new IllegalArgumentException("bad register value");
+            }
+            all[offset + i] = (byte) Math.max(all[offset + i], registers[i]);
+        }
+        hll.setRegisters(all);
+        return OK;
+    }
+
+    /**
+     * @return whether key exists and has not expired, without counting as an
+     *         access to it
+     */
+    public boolean exists(String key) {
+        Object value = map.peek(key);
+        return value != null && !(value instanceof ExpirableValue
+                && ((ExpirableValue) value).isExpired());
+    }
+
+    /**
+     * Note: walks the whole keyspace, O(n).
+     *
+     * @return up to count keys that hash to slot
+     */
+    public List<String> keysInSlot(int slot, int count) {
+        List<String> keys = new ArrayList<>();
+        if (count > 0) {
+            map.forEachKey(k -> {
+                if (HashSlot.of(k) == slot) {
+                    keys.add(new String(k, StandardCharsets.UTF_8));
+                }
+                return keys.size() < count;
+            });
+        }
+        return keys;
+    }
+
+    /**
+     * Note: walks the whole keyspace, O(n).
+     *
+     * @return number of keys that hash to slot
+     */
+    public int countKeysInSlot(int slot) {
+        int[] count = new int[1];
+        map.forEachKey(k -> {
+            if (HashSlot.of(k) == slot) {
+                count[0]++;
+            }
+            return true;
+        });
+        return count[0];
+    }
+
+    /**
+     * Describes the value at key as commands that recreate it, including its
+     * remaining time to live, for MIGRATE to replay on another node. The first
+     * command deletes any copy already there, so repeating a MIGRATE replaces
+     * it rather than merging into it. Each command fits in a request line
+     * once MIGRATE has prefixed it with ASKING.
+     *
+     * @return command lines; null if key does not exist
+     * @throws IllegalArgumentException if part of the value is too long to
+     *             fit in a line
+     */
+    public List<String> dump(String key) {
+        Object value = getUnexpired(key);
+        if (value == null) {
+            return null;
+        }
+        List<String> commands = new ArrayList<>();
+        commands.add(dumpLine("DEL " + key));
+        if (value instanceof HashTreeSet) {
+            for (ScoredMember m : (HashTreeSet) value) {
+                commands.add(dumpLine("ZADD " + key + " " + m.score + " " + m.getMember()));
+            }
+        } else if (value instanceof CompactHash) {
+            String hset = "HSET " + key;
+            int hsetBytes = utf8Length(hset);
+            StringBuilder line = new StringBuilder();
+            int[] lineBytes = new int[1];
+            ((CompactHash) value).forEach((field, fieldValue) -> {
+                String pair = " " + field + " " + fieldValue;
+                int pairBytes = utf8Length(pair);
+                if (hsetBytes + pairBytes > DUMP_LINE_BYTES) {
+                    throw new IllegalArgumentException("hash field " + field
+                            + " is too long to migrate");
+                }
+                if (lineBytes[0] + pairBytes > DUMP_LINE_BYTES) {
+                    commands.add(line.toString());
+                    line.setLength(0);
+                }
+                if (line.length() == 0) {
+                    line.append(hset);
+                    lineBytes[0] = hsetBytes;
+                }
+                line.append(pair);
+                lineBytes[0] += pairBytes;
+            });
+            commands.add(line.toString());
+        } else if (value instanceof HyperLogLog) {
+            byte[] registers = new byte[HyperLogLog.REGISTERS];
+            ((HyperLogLog) value).maxInto(registers);
+            for (int offset = 0; offset < registers.length; offset += DUMP_REGISTERS) {
+                StringBuilder hex = new StringBuilder(DUMP_REGISTERS * 2);
+                boolean nonZero = false;
+                for (int i = offset; i < offset + DUMP_REGISTERS; i++) {
+                    nonZero |= registers[i] != 0;
+                    hex.append(Character.forDigit(registers[i] >> 4, 16))
+                            .append(Character.forDigit(registers[i] & 0xf, 16));
+                }
+                // the first chunk always goes, so even an empty one is created
+                if (nonZero || offset == 0) {
+                    commands.add(dumpLine("PFRESTORE " + key + " " + offset + " " + hex));
+                }
+            }
+        } else if (value instanceof ExpirableValue) {
+            long remaining = ((ExpirableValue) value).getExpiresAt()
+                    - System.currentTimeMillis();
+            commands.add(dumpLine("SET " + key + " " + value + " EX "
+                    + Math.max(1L, (remaining + 999) / 1000)));
+        } else {
+            commands.add(dumpLine("SET " + key + " " + value));
+        }
+        return commands;
+    }
+
+    /**
+     * @return line, if it is short enough for dump
+     */
+    private static String dumpLine(String line) {
+        if (utf8Length(line) > DUMP_LINE_BYTES) {
+            throw new IllegalArgumentException("value is too long to migrate");
+        }
+        return line;
+    }
+
+    private static int utf8Length(String s) {
+        return s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
     private void verbosePrintln(String msg) {
         if (verbose) {
             System.out.println(msg);
@@ -1,10 +1,13 @@
 package com.kenlai.MKLRedis;
 
+import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
 import com.kenlai.MKLRedis.RequestQueue.AsyncTask;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
@@ -23,6 +26,14 @@ import io.netty.handler.codec.string.StringEncoder;
  */
 public class CachingStoreServer {
     private int initialSize = Integer.getInteger("initialSize", 1024);
+    private String bulkLoad = System.getProperty("bulkLoad");
+    private boolean addCrLf = Boolean.getBoolean("addCrLf");
+    private String clusterNodes = System.getProperty("cluster");
+
+    /** Requests processed between store maintenance calls when busy. */
+    private static final int MAINTENANCE_INTERVAL = 256;
+    /** Longest request line accepted, in bytes. */
+    static final int MAX_LINE_BYTES = 8192;
 
     private static final StringDecoder DECODER = new StringDecoder();
     private static final StringEncoder ENCODER = new StringEncoder();
@@ -30,14 +41,34 @@ public class CachingStoreServer {
     private CommandProcessor processor;
     private CachingStore store;
     private RequestQueue queue;
+    private PubSub pubSub;
 
     private int port;
 
-    public CachingStoreServer(int port) {
+    public CachingStoreServer(int port) throws IOException {
         this.port = port;
-        store = new CachingStore(initialSize);
-        processor = new CommandProcessor(store);
+        if (bulkLoad != null) {
+            // Warm up before we start accepting connections.
+            long before = System.currentTimeMillis();
+            BulkLoader loader = new BulkLoader(initialSize);
+            store = loader.load(bulkLoad);
+            long after = System.currentTimeMillis();
+            System.out.println("Loaded " + loader.getRecords() + " records ("
+                    + loader.getErrors() + " errors) from " + bulkLoad + " in "
+                    + Long.toString(after - before) + "ms");
+        } else {
+            store = new CachingStore(initialSize);
+        }
+        ClusterState cluster = null;
+        if (clusterNodes != null) {
+            cluster = ClusterState.parse(clusterNodes,
+                    System.getProperty("clusterSelf", "localhost:" + port));
+            System.out.println("Cluster node " + cluster.self() + " of "
+                    + clusterNodes);
+        }
+        processor = new CommandProcessor(store, cluster);
         queue = new RequestQueue();
+        pubSub = new PubSub();
     }
 
     public void run() throws Exception {
@@ -53,11 +84,11 @@ public class CachingStoreServer {
                      ChannelPipeline pipeline = ch.pipeline();
 
                      // Add the text line codec combination first,
-                     pipeline.addLast(new DelimiterBasedFrameDecoder(8192, Delimiters.lineDelimiter()));
+                     pipeline.addLast(new DelimiterBasedFrameDecoder(MAX_LINE_BYTES, Delimiters.lineDelimiter()));
                      // the encoder and decoder are static as these are sharable
                      pipeline.addLast(DECODER);
                      pipeline.addLast(ENCODER);
-                     pipeline.addLast(new CachingStoreServerHandler(queue));
+                     pipeline.addLast(new CachingStoreServerHandler(queue, pubSub, addCrLf));
                  }
              })
              .option(ChannelOption.SO_BACKLOG, 128)
@@ -70,11 +101,23 @@ public class CachingStoreServer {
 
             // Use main thread to process requests
             // TODO: consider separate executor
+            long pollMillis = 1000L;
+            long processed = 0;
             while (!f.isDone()) {
-                AsyncTask t = queue.poll(1, TimeUnit.SECONDS);
-                if (t != null) {
-                    String result = processor.process(t.getRequest());
-                    t.getCompletableFuture().complete(result);
+                AsyncTask t = queue.poll(pollMillis, TimeUnit.MILLISECONDS);
+                // housekeeping while idle, and now and then when busy
+                if (t == null || ++processed % MAINTENANCE_INTERVAL == 0) {
+                    pollMillis = store.maintenance() ? 0L : 1000L;
+                }
+                // skip requests whose caller already timed out or went away
+                if (t != null && !t.isAbandoned()) {
+                    ByteBuf result = processor.process(t.getRequest(),
+                            ByteBufAllocator.DEFAULT, addCrLf);
+                    // the caller may have timed out in the meantime
+                    if (!t.getCompletableFuture().complete(result)
+                            && result != null) {
+                        result.release();
+                    }
                 }
             }
 
@@ -1,69 +1,364 @@
 package com.kenlai.MKLRedis;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.ScheduledFuture;
 
 
 /**
  * Handles requests. (Derived from netty.io Telnet Server example)
+ * <p>
+ * Requests are handed to the worker queue without blocking the event loop.
+ * Responses are written in request order as their futures complete. Once a
+ * connection has maxInFlight requests outstanding, reading from its socket is
+ * paused until half of them have been answered, so a fast client cannot flood
+ * the worker queue.
+ * <p>
+ * Pub/Sub commands are handled here on the event loop and never reach the
+ * worker. So is a bare ASKING, which is remembered and passed on as a prefix
+ * of the connection's next request. Published messages are queued behind the
+ * responses still owed, like responses, so they never interleave with them.
+ * A subscriber with more than pubsubOutputLimit bytes of messages not yet
+ * written to its socket is disconnected, as it is not keeping up.
  */
 public class CachingStoreServerHandler extends SimpleChannelInboundHandler<String> {
     private static final Long timeout_s = Long.getLong("handlerTimeout", 5L);
-    private static final boolean addCrLf = Boolean.getBoolean("addCrLf");
+    private static final int defaultMaxInFlight = Integer.getInteger("maxInFlight", 128);
+    private static final long defaultOutputLimit =
+            Long.getLong("pubsubOutputLimit", 32L * 1024 * 1024);
+
+    private static final boolean verbose = Boolean.getBoolean("verbose");
+
+    private static final String BUSY = "BUSY server overloaded";
+
+    private static final Set<String> pubSubCommands = new HashSet<String>();
+    static {
+        for (Command cmd : EnumSet.of(Command.SUBSCRIBE, Command.UNSUBSCRIBE,
+                Command.PSUBSCRIBE, Command.PUNSUBSCRIBE, Command.PUBLISH)) {
+            pubSubCommands.add(cmd.name());
+        }
+    }
+
+    /** Like the command validator, but also allowing glob wildcards. */
+    private final static Pattern pubSubValidatorPattern =
+            Pattern.compile("\\A[ a-zA-Z0-9-_*?]*\\z");
 
     private RequestQueue queue;
+    private PubSub pubSub;
+    private final boolean addCrLf;
+    /** null for no timeout */
+    private final Long timeoutMillis;
+    private final int maxInFlight;
+    private final long outputLimit;
+
+    private ChannelHandlerContext ctx;
+    /** Bytes of published messages not yet written; touched only on event loop. */
+    private long pushedBytes;
+
+    /** This connection's subscriptions; touched only on event loop. */
+    private final Set<String> channels = new HashSet<String>();
+    private final Set<String> patterns = new HashSet<String>();
+
+    /** Whether the last request was ASKING; touched only on event loop. */
+    private boolean asking;
+
+    /** Outstanding responses in request order; touched only on event loop. */
+    private final ArrayDeque<PendingResponse> pending =
+            new ArrayDeque<PendingResponse>();
+
+    /**
+     * @param addCrLf whether responses are terminated with \r\n; must match
+     *            what the worker encodes
+     */
+    public CachingStoreServerHandler(RequestQueue queue, PubSub pubSub,
+            boolean addCrLf) {
+        this(queue, pubSub, addCrLf,
+                timeout_s == null ? null : TimeUnit.SECONDS.toMillis(timeout_s),
+                defaultMaxInFlight, defaultOutputLimit);
+    }
 
-    public CachingStoreServerHandler(RequestQueue queue) {
+    /**
+     * @param timeoutMillis time until a request is given up on; null for none
+     * @param outputLimit bytes of published messages a subscriber may fall
+     *            behind by before it is disconnected
+     */
+    CachingStoreServerHandler(RequestQueue queue, PubSub pubSub, boolean addCrLf,
+            Long timeoutMillis, int maxInFlight, long outputLimit) {
         this.queue = queue;
+        this.pubSub = pubSub;
+        this.addCrLf = addCrLf;
+        this.timeoutMillis = timeoutMillis;
+        this.maxInFlight = maxInFlight;
+        this.outputLimit = outputLimit;
     }
 
     @Override
-    public void channelRead0(ChannelHandlerContext ctx, String request) {
-        // Generate and write a response.
-        String response;
-        boolean close = false;
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    /**
+     * Queues a published message for this subscriber, behind any responses
+     * still owed. Takes over the caller's reference to message. Must be called
+     * on the event loop.
+     */
+    void push(ByteBuf message) {
+        int size = message.readableBytes();
+        if (!ctx.channel().isActive()) {
+            message.release();
+            return;
+        }
+        if (pushedBytes + size > outputLimit) {
+            message.release();
+            verbosePrintln("Disconnecting subscriber "
+                    + ctx.channel().remoteAddress() + " over pubsubOutputLimit");
+            ctx.close();
+            return;
+        }
+        pushedBytes += size;
+        pending.add(new PendingResponse(
+                CompletableFuture.completedFuture(message), false, size));
+        writeCompleted(ctx);
+    }
+
+    @Override
+    public void channelRead0(final ChannelHandlerContext ctx, String request) {
         if ("bye".equals(request.toLowerCase())) {
-            response = "Have a good day!\r\n";
-            close = true;
+            pending.add(new PendingResponse(
+                    CompletableFuture.completedFuture("Have a good day!\r\n"), true));
+            writeCompleted(ctx);
+            return;
+        }
+
+        if (Command.ASKING.name().equals(request)) {
+            asking = true;
+            pending.add(new PendingResponse(
+                    CompletableFuture.completedFuture("OK"), false));
+            writeCompleted(ctx);
+            return;
+        }
+
+        Object pubSubResponse = processPubSub(ctx, request);
+        if (pubSubResponse != null) {
+            pending.add(new PendingResponse(
+                    CompletableFuture.completedFuture(pubSubResponse), false));
+            writeCompleted(ctx);
+            return;
+        }
+
+        if (asking && !request.isEmpty()) {
+            asking = false;
+            request = Command.ASKING.name() + " " + request;
+        }
+
+        final CompletableFuture<ByteBuf> completableFuture = queue.offer(request);
+        if (completableFuture == null) {
+            // Fail fast rather than queue up more work than we can handle.
+            pending.add(new PendingResponse(
+                    CompletableFuture.completedFuture(BUSY), false));
+            writeCompleted(ctx);
+            return;
+        }
+        pending.add(new PendingResponse(completableFuture, false));
+
+        if (timeoutMillis != null) {
+            // Completing the future marks the task abandoned, so the worker
+            // drops it instead of executing it late.
+            final ScheduledFuture<?> timer = ctx.executor().schedule(() ->
+                    completableFuture.completeExceptionally(
+                            new TimeoutException("timed out")),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+            completableFuture.whenComplete((r, e) -> timer.cancel(false));
+        }
+        completableFuture.whenComplete(
+                (r, e) -> ctx.executor().execute(() -> writeCompleted(ctx)));
+
+        if (pending.size() >= maxInFlight) {
+            ctx.channel().config().setAutoRead(false);
+        }
+    }
+
+    /**
+     * Handles Pub/Sub commands.
+     *
+     * @return response, or null if request is not a Pub/Sub command.
+     *         Subscription acknowledgements are encoded and terminated with
+     *         \r\n like published messages, whatever addCrLf says.
+     */
+    private Object processPubSub(ChannelHandlerContext ctx, String request) {
+        int space = request.indexOf(' ');
+        String name = space < 0 ? request : request.substring(0, space);
+        if (!pubSubCommands.contains(name)) {
+            return null;
+        }
+        if (!pubSubValidatorPattern.matcher(request).matches()) {
+            return "ERROR invalid input characters detected";
+        }
+        String[] tokens = request.split(" ");
+        List<String> lines = new ArrayList<String>();
+        switch (Command.valueOf(name)) {
+        case SUBSCRIBE:
+            if (tokens.length < 2) {
+                return "ERROR number of parameters";
+            }
+            for (int i = 1; i < tokens.length; i++) {
+                if (channels.add(tokens[i])) {
+                    pubSub.subscribe(tokens[i], ctx.channel());
+                }
+                lines.add("subscribe " + tokens[i] + " " + subscriptionCount());
+            }
+            break;
+        case PSUBSCRIBE:
+            if (tokens.length < 2) {
+                return "ERROR number of parameters";
+            }
+            for (int i = 1; i < tokens.length; i++) {
+                if (patterns.add(tokens[i])) {
+                    pubSub.psubscribe(tokens[i], ctx.channel());
+                }
+                lines.add("psubscribe " + tokens[i] + " " + subscriptionCount());
+            }
+            break;
+        case UNSUBSCRIBE:
+            for (String channel : targets(tokens, channels)) {
+                if (channels.remove(channel)) {
+                    pubSub.unsubscribe(channel, ctx.channel());
+                }
+                lines.add("unsubscribe " + channel + " " + subscriptionCount());
+            }
+            break;
+        case PUNSUBSCRIBE:
+            for (String pattern : targets(tokens, patterns)) {
+                if (patterns.remove(pattern)) {
+                    pubSub.punsubscribe(pattern, ctx.channel());
+                }
+                lines.add("punsubscribe " + pattern + " " + subscriptionCount());
+            }
+            break;
+        case PUBLISH:
+            if (tokens.length != 3) {
+                return "ERROR number of parameters";
+            }
+            return Integer.toString(
+                    pubSub.publish(tokens[1], tokens[2], ctx.alloc()));
+        default:
+            return null;
+        }
+        if (lines.isEmpty()) {
+            lines.add(tokens[0].toLowerCase() + " (nil) " + subscriptionCount());
+        }
+        return ByteBufUtil.writeUtf8(ctx.alloc(),
+                String.join("\r\n", lines) + "\r\n");
+    }
+
+    /**
+     * @return names given in the command, or all current ones if none given
+     */
+    private static List<String> targets(String[] tokens, Set<String> current) {
+        List<String> targets = new ArrayList<String>();
+        if (tokens.length > 1) {
+            for (int i = 1; i < tokens.length; i++) {
+                targets.add(tokens[i]);
+            }
         } else {
+            targets.addAll(current);
+        }
+        return targets;
+    }
+
+    private int subscriptionCount() {
+        return channels.size() + patterns.size();
+    }
+
+    /**
+     * Write responses from the head of the pending queue, stopping at the
+     * first one still in progress so that responses keep request order.
+     */
+    private void writeCompleted(ChannelHandlerContext ctx) {
+        boolean written = false;
+        while (!pending.isEmpty() && pending.peek().future.isDone()) {
+            PendingResponse p = pending.poll();
+            Object response;
             try {
-                CompletableFuture<String> completableFuture = queue.add(request);
-                if (timeout_s == null) {
-                    response = completableFuture.get();
-                } else {
-                    response = completableFuture.get(timeout_s, TimeUnit.SECONDS);
+                response = p.future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (!(cause instanceof TimeoutException)) {
+                    cause.printStackTrace();
                 }
+                response = "ERROR " + cause.getLocalizedMessage();
             } catch (Exception e) {
                 e.printStackTrace();
                 response = "ERROR " + e.getLocalizedMessage();
             }
+            if (response == null) {
+                continue;
+            }
+            // Results from the worker are already encoded and terminated.
+            // Other responses are Strings, converted by the encoder.
+            if (addCrLf && response instanceof String) {
+                response = response + "\r\n";
+            }
+            ChannelFuture future = ctx.write(response);
+            written = true;
+
+            // Close the connection after sending 'Have a good day!'
+            // if the client has sent 'bye'.
+            if (p.close) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+            if (p.pushedSize > 0) {
+                final int size = p.pushedSize;
+                future.addListener(f -> pushedBytes -= size);
+            }
         }
-        if (response == null) {
-            return;
-        }
-        if (addCrLf) {
-            response = response + "\r\n";
+        if (written) {
+            ctx.flush();
         }
-
-        // We do not need to write a ChannelBuffer here.
-        // We know the encoder inserted at TelnetPipelineFactory will do the conversion.
-        ChannelFuture future = ctx.write(response);
-
-        // Close the connection after sending 'Have a good day!'
-        // if the client has sent 'bye'.
-        if (close) {
-            future.addListener(ChannelFutureListener.CLOSE);
+        if (!ctx.channel().config().isAutoRead()
+                && pending.size() <= maxInFlight / 2) {
+            ctx.channel().config().setAutoRead(true);
         }
     }
 
     @Override
-    public void channelReadComplete(ChannelHandlerContext ctx) {
-        ctx.flush();
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        // Nobody is left to read these; let the worker skip them, and
+        // release any results that were already encoded.
+        for (PendingResponse p : pending) {
+            if (!p.future.cancel(false) && !p.future.isCompletedExceptionally()) {
+                Object response = p.future.getNow(null);
+                if (response instanceof ByteBuf) {
+                    ((ByteBuf) response).release();
+                }
+            }
+        }
+        pending.clear();
+        for (String channel : channels) {
+            pubSub.unsubscribe(channel, ctx.channel());
+        }
+        for (String pattern : patterns) {
+            pubSub.punsubscribe(pattern, ctx.channel());
+        }
+        channels.clear();
+        patterns.clear();
+        super.channelInactive(ctx);
     }
 
     @Override
@@ -72,4 +367,27 @@ public class CachingStoreServerHandler extends SimpleChannelInboundHandler<Strin
         cause.printStackTrace();
         ctx.close();
     }
-}
\ No newline at end of file
+
+    private static void verbosePrintln(String msg) {
+        if (verbose) {
+            System.out.println(msg);
+        }
+    }
+
+    private static class PendingResponse {
+        final CompletableFuture<?> future;
+        final boolean close;
+        /** size of a published message, else 0 */
+        final int pushedSize;
+
+        PendingResponse(CompletableFuture<?> future, boolean close) {
+            this(future, close, 0);
+        }
+
+        PendingResponse(CompletableFuture<?> future, boolean close, int pushedSize) {
+            this.future = future;
+            this.close = close;
+            this.pushedSize = pushedSize;
+        }
+    }
+}
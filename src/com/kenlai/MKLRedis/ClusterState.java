@@ -0,0 +1,118 @@
+package com.kenlai.MKLRedis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This node's view of which node serves each hash slot.
+ * <p>
+ * Nodes are named by their {@code host:port}. Every node is started with the
+ * same node list, and the slots are initially split into equal consecutive
+ * ranges in list order, so all nodes agree on the layout without talking to
+ * each other. From then on the layout only changes through CLUSTER SETSLOT,
+ * which the operator sends to each node, e.g. while migrating a slot.
+ * <p>
+ * Not thread safe; only used from the worker thread.
+ */
+class ClusterState {
+    private final String self;
+    private final String[] owners = new String[HashSlot.SLOTS];
+    /** node each slot is being moved to, for slots served here; else null */
+    private final String[] migrating = new String[HashSlot.SLOTS];
+    /** node each slot is being moved from, for slots moving here; else null */
+    private final String[] importing = new String[HashSlot.SLOTS];
+
+    /**
+     * @param nodes host:port of every node in the cluster
+     * @param self host:port of this node, which must be one of nodes
+     */
+    ClusterState(List<String> nodes, String self) {
+        if (!nodes.contains(self)) {
+            throw new IllegalArgumentException(self + " is not in cluster " + nodes);
+        }
+        this.self = self;
+        for (int slot = 0; slot < HashSlot.SLOTS; slot++) {
+            owners[slot] = nodes.get((int) ((long) slot * nodes.size() / HashSlot.SLOTS));
+        }
+    }
+
+    /**
+     * @param nodes comma separated host:port of every node
+     */
+    static ClusterState parse(String nodes, String self) {
+        return new ClusterState(Arrays.asList(nodes.split(",")), self);
+    }
+
+    String self() {
+        return self;
+    }
+
+    String owner(int slot) {
+        return owners[slot];
+    }
+
+    boolean isLocal(int slot) {
+        return self.equals(owners[slot]);
+    }
+
+    /**
+     * @return node slot is being migrated to, or null
+     */
+    String migratingTo(int slot) {
+        return migrating[slot];
+    }
+
+    /**
+     * @return node slot is being imported from, or null
+     */
+    String importingFrom(int slot) {
+        return importing[slot];
+    }
+
+    void setMigrating(int slot, String node) {
+        if (!isLocal(slot)) {
+            throw new IllegalArgumentException("slot " + slot + " is not served here");
+        }
+        migrating[slot] = node;
+    }
+
+    void setImporting(int slot, String node) {
+        if (isLocal(slot)) {
+            throw new IllegalArgumentException("slot " + slot + " is already served here");
+        }
+        importing[slot] = node;
+    }
+
+    /**
+     * Assigns slot to node, ending any migration of it.
+     */
+    void setOwner(int slot, String node) {
+        owners[slot] = node;
+        migrating[slot] = null;
+        importing[slot] = null;
+    }
+
+    void setStable(int slot) {
+        migrating[slot] = null;
+        importing[slot] = null;
+    }
+
+    /**
+     * @return start slot, end slot (inclusive) and node of each run of
+     *         consecutive slots served by the same node, in slot order
+     */
+    List<String> slotRanges() {
+        List<String> ranges = new ArrayList<>();
+        int start = 0;
+        for (int slot = 1; slot <= HashSlot.SLOTS; slot++) {
+            if (slot == HashSlot.SLOTS || !owners[slot].equals(owners[start])) {
+                ranges.add(Integer.toString(start));
+                ranges.add(Integer.toString(slot - 1));
+                ranges.add(owners[start]);
+                start = slot;
+            }
+        }
+        return ranges;
+    }
+}
@@ -4,10 +4,31 @@ public enum Command {
 	SET,
 	GET,
 	DEL,
+	UNLINK,
 	DBSIZE,
 	INCR,
 	ZADD,
 	ZCARD,
 	ZRANK,
 	ZRANGE,
+	ZUNIONSTORE,
+	ZINTERSTORE,
+	HSET,
+	HGET,
+	HMGET,
+	HINCRBY,
+	HGETALL,
+	HDEL,
+	PFADD,
+	PFCOUNT,
+	PFMERGE,
+	SUBSCRIBE,
+	UNSUBSCRIBE,
+	PSUBSCRIBE,
+	PUNSUBSCRIBE,
+	PUBLISH,
+	ASKING,
+	CLUSTER,
+	MIGRATE,
+	PFRESTORE,
 }
@@ -1,18 +1,45 @@
 package com.kenlai.MKLRedis;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Pattern;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Parses requests and executes them against the store.
+ * <p>
+ * In cluster mode, each keyed request is first checked against the slot
+ * layout. Requests for a slot served by another node get
+ * {@code MOVED <slot> <host:port>}, and requests for keys already moved out
+ * of a migrating slot get {@code ASK <slot> <host:port>}; the client should
+ * resend the latter to that node once, prefixed with ASKING.
+ */
 public class CommandProcessor {
     private boolean verbose = Boolean.getBoolean("verbose");
 
     private final static Pattern validatorPattern =
-            Pattern.compile("\\A[ a-zA-Z0-9-_]*\\z");
+            Pattern.compile("\\A[ a-zA-Z0-9-_.:{}]*\\z");
 
     private CachingStore store;
+    /** null unless in cluster mode */
+    private ClusterState cluster;
+    private final MigrationLink migrationLink = new MigrationLink();
 
     public CommandProcessor(CachingStore store) {
+        this(store, null);
+    }
+
+    /**
+     * @param cluster slot layout to serve requests by; null for a standalone
+     *            node serving every key
+     */
+    public CommandProcessor(CachingStore store, ClusterState cluster) {
         this.store = store;
+        this.cluster = cluster;
     }
 
     /**
@@ -21,65 +48,462 @@ public class CommandProcessor {
      * @return result value of the command
      */
     public String process(String request) {
+        StringReply reply = new StringReply();
+        process(request, reply);
+        return reply.result();
+    }
+
+    /**
+     * Parses the full command string and forwards to appropriate method,
+     * encoding the result directly into a buffer.
+     *
+     * @param addCrLf whether to terminate the result with \r\n
+     * @return result value of the command, owned by the caller; null if there
+     *         is nothing to send
+     */
+    public ByteBuf process(String request, ByteBufAllocator alloc, boolean addCrLf) {
+        ByteBufReply reply = new ByteBufReply(alloc, addCrLf);
+        process(request, reply);
+        return reply.result();
+    }
+
+    private void process(String request, Reply reply) {
         if (request.isEmpty()) {
-            return null;
+            return;
         }
-        if (!validatorPattern.matcher(request).matches()) {
+        String[] tokens = tokenize(request);
+        if (tokens == null) {
             verbosePrintln("invalid input characters detected");
-            return "ERROR invalid input characters detected";
+            reply.error("invalid input characters detected");
+            return;
+        }
+        // ASKING applies to the command that follows it on the same line
+        boolean asking = false;
+        if (tokens[0].equals(Command.ASKING.name())) {
+            if (tokens.length == 1) {
+                reply.ok();
+                return;
+            }
+            asking = true;
+            tokens = Arrays.copyOfRange(tokens, 1, tokens.length);
+        }
+        if (cluster != null && !route(tokens, asking, reply)) {
+            return;
+        }
+        execute(tokens, reply);
+    }
+
+    /**
+     * Checks whether the keys of a command are served by this node, and
+     * replies with a redirect if not.
+     *
+     * @param asking whether the client was redirected here by ASK
+     * @return true if the command should be executed here
+     */
+    private boolean route(String[] tokens, boolean asking, Reply reply) {
+        String[] keys;
+        try {
+            keys = keys(Command.valueOf(tokens[0]), tokens);
+        } catch (IllegalArgumentException e) {
+            // leave it to execute to report
+            return true;
+        }
+        if (keys.length == 0) {
+            return true;
         }
-        String[] tokens = request.split(" ");
+        int slot = HashSlot.of(keys[0]);
+        for (int i = 1; i < keys.length; i++) {
+            if (HashSlot.of(keys[i]) != slot) {
+                reply.error("CROSSSLOT keys hash to different slots");
+                return false;
+            }
+        }
+        if (cluster.isLocal(slot)) {
+            String target = cluster.migratingTo(slot);
+            if (target == null) {
+                return true;
+            }
+            int existing = 0;
+            for (String key : keys) {
+                if (store.exists(key)) {
+                    existing++;
+                }
+            }
+            if (existing == keys.length) {
+                return true;
+            }
+            if (existing > 0) {
+                // some keys are here and some have moved; retry once all moved
+                reply.error("TRYAGAIN slot " + slot + " is being migrated");
+                return false;
+            }
+            reply.string("ASK " + slot + " " + target);
+            return false;
+        }
+        if (asking && cluster.importingFrom(slot) != null) {
+            return true;
+        }
+        reply.string("MOVED " + slot + " " + cluster.owner(slot));
+        return false;
+    }
+
+    /**
+     * @return keys the command reads or writes
+     */
+    private static String[] keys(Command cmd, String[] tokens) {
+        switch (cmd) {
+        case DBSIZE:
+        case CLUSTER:
+        case MIGRATE:
+        case ASKING:
+        case SUBSCRIBE:
+        case UNSUBSCRIBE:
+        case PSUBSCRIBE:
+        case PUNSUBSCRIBE:
+        case PUBLISH:
+            return new String[0];
+        case PFCOUNT:
+        case PFMERGE:
+            return Arrays.copyOfRange(tokens, 1, tokens.length);
+        case ZUNIONSTORE:
+        case ZINTERSTORE:
+            int numkeys = tokens.length > 2 ? Integer.parseInt(tokens[2]) : 0;
+            if (numkeys >= 1 && 3 + numkeys <= tokens.length) {
+                String[] keys = Arrays.copyOfRange(tokens, 2, 3 + numkeys);
+                keys[0] = tokens[1];
+                return keys;
+            }
+            return new String[] {tokens[1]};
+        default:
+            return tokens.length > 1 ? new String[] {tokens[1]} : new String[0];
+        }
+    }
+
+    /**
+     * Splits a command string into tokens. This is independent of the store,
+     * so it is safe to call from any thread.
+     *
+     * @return tokens of request, or null if request has invalid characters
+     */
+    static String[] tokenize(String request) {
+        if (!validatorPattern.matcher(request).matches()) {
+            return null;
+        }
+        return request.split(" ");
+    }
+
+    /**
+     * Executes an already tokenized command against the store.
+     *
+     * @return result value of the command
+     */
+    public String execute(String[] tokens) {
+        StringReply reply = new StringReply();
+        execute(tokens, reply);
+        return reply.result();
+    }
+
+    private void execute(String[] tokens, Reply reply) {
         try {
             Command cmd = Command.valueOf(tokens[0]);
             switch (cmd) {
             case SET:
                 Long expiration = null;
                 if (tokens.length == 5 && tokens[3].equals("EX")) {
-                    expiration = Long.getLong(tokens[4]);
+                    expiration = Long.parseLong(tokens[4]);
                 } else if (tokens.length != 3) {
                     verbosePrintln("incorrect parameters for SET");
-                    return "ERROR bad SET parameters";
+                    reply.error("bad SET parameters");
+                    return;
                 }
-                return store.set(tokens[1], tokens[2], expiration);
+                store.set(tokens[1], tokens[2], expiration);
+                reply.ok();
+                return;
             case GET:
                 verifyLength(tokens, 2);
-                String value = store.get(tokens[1]);
-                return (value == null) ? "(nil)" : value;
+                reply.string(store.get(tokens[1]));
+                return;
             case INCR:
                 verifyLength(tokens, 2);
-                return store.incr(tokens[1]).toString();
+                Object incremented = store.incr(tokens[1]);
+                if (incremented instanceof ExpirableValue) {
+                    incremented = ((ExpirableValue) incremented).value;
+                }
+                reply.integer((Long) incremented);
+                return;
             case DEL:
                 verifyLength(tokens, 2);
-                return Integer.toString(store.del(tokens[1]));
+                reply.integer(store.del(tokens[1]));
+                return;
+            case UNLINK:
+                verifyLength(tokens, 2);
+                reply.integer(store.unlink(tokens[1]));
+                return;
             case DBSIZE:
                 verifyLength(tokens, 1);
-                return Integer.toString(store.dbsize());
+                reply.integer(store.dbsize());
+                return;
             case ZADD:
                 verifyLength(tokens, 4);
-                return store.zadd(tokens[1], Long.parseLong(tokens[2]), tokens[3]);
+                store.zadd(tokens[1], Long.parseLong(tokens[2]), tokens[3]);
+                reply.ok();
+                return;
             case ZCARD:
                 verifyLength(tokens, 2);
-                return Integer.toString(store.zcard(tokens[1]));
+                reply.integer(store.zcard(tokens[1]));
+                return;
             case ZRANK:
                 verifyLength(tokens, 3);
-                return Integer.toString(store.zrank(tokens[1], tokens[2]));
+                Integer rank = store.zrank(tokens[1], tokens[2]);
+                if (rank == null) {
+                    reply.nil();
+                } else {
+                    reply.integer(rank);
+                }
+                return;
             case ZRANGE:
                 verifyLength(tokens, 4);
-                return listToString(store.zrange(tokens[1],
-                        Integer.parseInt(tokens[2]),
-                        Integer.parseInt(tokens[3])));
+                int start = Integer.parseInt(tokens[2]);
+                int stop = Integer.parseInt(tokens[3]);
+                reply.beginList();
+                store.zrange(tokens[1], start, stop, reply::element);
+                reply.endList();
+                return;
+            case ZUNIONSTORE:
+            case ZINTERSTORE:
+                reply.integer(zstore(cmd, tokens));
+                return;
+            case HSET:
+                if (tokens.length < 4 || tokens.length % 2 != 0) {
+                    throw new IndexOutOfBoundsException("fields and values must pair up");
+                }
+                reply.integer(store.hset(tokens[1],
+                        Arrays.copyOfRange(tokens, 2, tokens.length)));
+                return;
+            case HGET:
+                verifyLength(tokens, 3);
+                reply.string(store.hget(tokens[1], tokens[2]));
+                return;
+            case HMGET:
+                verifyMinLength(tokens, 3);
+                reply.beginList();
+                for (int i = 2; i < tokens.length; i++) {
+                    reply.element(store.hget(tokens[1], tokens[i]));
+                }
+                reply.endList();
+                return;
+            case HINCRBY:
+                verifyLength(tokens, 4);
+                reply.integer(store.hincrby(tokens[1], tokens[2],
+                        Long.parseLong(tokens[3])));
+                return;
+            case HGETALL:
+                verifyLength(tokens, 2);
+                reply.beginList();
+                store.hgetall(tokens[1], (field, value) -> {
+                    reply.element(field);
+                    reply.element(value);
+                });
+                reply.endList();
+                return;
+            case HDEL:
+                verifyMinLength(tokens, 3);
+                reply.integer(store.hdel(tokens[1],
+                        Arrays.copyOfRange(tokens, 2, tokens.length)));
+                return;
+            case PFADD:
+                verifyMinLength(tokens, 2);
+                reply.integer(store.pfadd(tokens[1],
+                        Arrays.copyOfRange(tokens, 2, tokens.length)));
+                return;
+            case PFCOUNT:
+                verifyMinLength(tokens, 2);
+                reply.integer(store.pfcount(
+                        Arrays.copyOfRange(tokens, 1, tokens.length)));
+                return;
+            case PFMERGE:
+                verifyMinLength(tokens, 2);
+                store.pfmerge(tokens[1],
+                        Arrays.copyOfRange(tokens, 2, tokens.length));
+                reply.ok();
+                return;
+            case PFRESTORE:
+                verifyLength(tokens, 4);
+                store.pfrestore(tokens[1], Integer.parseInt(tokens[2]),
+                        parseHex(tokens[3]));
+                reply.ok();
+                return;
+            case CLUSTER:
+                verifyMinLength(tokens, 2);
+                cluster(tokens, reply);
+                return;
+            case MIGRATE:
+                verifyMinLength(tokens, 4);
+                migrate(tokens, reply);
+                return;
             default:
                 verbosePrintln("Command " + tokens[0]
                         + " is not yet implemented");
             }
         } catch (IllegalArgumentException e) {
             verbosePrintln("bad command: " + tokens[0]);
-            return "ERROR bad command";
+            reply.error("bad command");
         } catch (IndexOutOfBoundsException e) {
             verbosePrintln("incorrect number of parameters");
-            return "ERROR number of parameters";
+            reply.error("number of parameters");
+        }
+    }
+
+    /**
+     * Parses {@code destination numkeys key [key ...] [WEIGHTS weight
+     * [weight ...]] [AGGREGATE SUM|MIN|MAX]} and runs the store operation.
+     */
+    private int zstore(Command cmd, String[] tokens) {
+        String destination = tokens[1];
+        int numkeys = Integer.parseInt(tokens[2]);
+        if (numkeys < 1 || 3 + numkeys > tokens.length) {
+            throw new IndexOutOfBoundsException("incorrect number of keys");
+        }
+        String[] keys = Arrays.copyOfRange(tokens, 3, 3 + numkeys);
+        long[] weights = null;
+        SortedSetMerge.Aggregate aggregate = SortedSetMerge.Aggregate.SUM;
+        int i = 3 + numkeys;
+        while (i < tokens.length) {
+            if (tokens[i].equals("WEIGHTS") && i + numkeys < tokens.length) {
+                weights = new long[numkeys];
+                for (int w = 0; w < numkeys; w++) {
+                    weights[w] = Long.parseLong(tokens[i + 1 + w]);
+                }
+                i += 1 + numkeys;
+            } else if (tokens[i].equals("AGGREGATE") && i + 1 < tokens.length) {
+                aggregate = SortedSetMerge.Aggregate.valueOf(tokens[i + 1]);
+                i += 2;
+            } else {
+                throw new IllegalArgumentException("bad option " + tokens[i]);
+            }
+        }
+        if (cmd == Command.ZUNIONSTORE) {
+            return store.zunionstore(destination, keys, weights, aggregate);
+        }
+        return store.zinterstore(destination, keys, weights, aggregate);
+    }
+
+    /**
+     * Handles {@code CLUSTER SLOTS | KEYSLOT key | COUNTKEYSINSLOT slot |
+     * GETKEYSINSLOT slot count | SETSLOT slot IMPORTING|MIGRATING|NODE
+     * host:port | SETSLOT slot STABLE}.
+     */
+    private void cluster(String[] tokens, Reply reply) {
+        if (cluster == null) {
+            reply.error("cluster mode is not enabled");
+            return;
+        }
+        switch (tokens[1]) {
+        case "SLOTS":
+            verifyLength(tokens, 2);
+            reply.beginList();
+            for (String s : cluster.slotRanges()) {
+                reply.element(s);
+            }
+            reply.endList();
+            return;
+        case "KEYSLOT":
+            verifyLength(tokens, 3);
+            reply.integer(HashSlot.of(tokens[2]));
+            return;
+        case "COUNTKEYSINSLOT":
+            verifyLength(tokens, 3);
+            reply.integer(store.countKeysInSlot(parseSlot(tokens[2])));
+            return;
+        case "GETKEYSINSLOT":
+            verifyLength(tokens, 4);
+            reply.beginList();
+            for (String key : store.keysInSlot(parseSlot(tokens[2]),
+                    Integer.parseInt(tokens[3]))) {
+                reply.element(key);
+            }
+            reply.endList();
+            return;
+        case "SETSLOT":
+            verifyMinLength(tokens, 4);
+            int slot = parseSlot(tokens[2]);
+            switch (tokens[3]) {
+            case "IMPORTING":
+                verifyLength(tokens, 5);
+                cluster.setImporting(slot, tokens[4]);
+                break;
+            case "MIGRATING":
+                verifyLength(tokens, 5);
+                cluster.setMigrating(slot, tokens[4]);
+                break;
+            case "NODE":
+                verifyLength(tokens, 5);
+                cluster.setOwner(slot, tokens[4]);
+                break;
+            case "STABLE":
+                verifyLength(tokens, 4);
+                cluster.setStable(slot);
+                break;
+            default:
+                throw new IllegalArgumentException("bad SETSLOT " + tokens[3]);
+            }
+            reply.ok();
+            return;
+        default:
+            throw new IllegalArgumentException("bad CLUSTER " + tokens[1]);
+        }
+    }
+
+    /**
+     * Handles {@code MIGRATE host port key [key ...]}: copies the keys to the
+     * node at host:port and removes them here once it has acknowledged them
+     * all. Missing keys are skipped. On failure nothing is removed, and the
+     * MIGRATE can simply be repeated.
+     */
+    private void migrate(String[] tokens, Reply reply) {
+        String host = tokens[1];
+        int port = Integer.parseInt(tokens[2]);
+        List<String> commands = new ArrayList<>();
+        List<String> migrated = new ArrayList<>();
+        for (int i = 3; i < tokens.length; i++) {
+            List<String> dump = store.dump(tokens[i]);
+            if (dump != null) {
+                commands.addAll(dump);
+                migrated.add(tokens[i]);
+            }
+        }
+        if (!commands.isEmpty()) {
+            try {
+                migrationLink.send(host, port, commands);
+            } catch (IOException e) {
+                verbosePrintln("MIGRATE failed: " + e);
+                reply.error("MIGRATE failed");
+                return;
+            }
+        }
+        for (String key : migrated) {
+            store.del(key);
+        }
+        reply.integer(migrated.size());
+    }
+
+    private static int parseSlot(String token) {
+        int slot = Integer.parseInt(token);
+        if (slot < 0 || slot >= HashSlot.SLOTS) {
+            throw new IllegalArgumentException("slot out of range");
         }
-        return null;
+        return slot;
+    }
+
+    private static byte[] parseHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("odd number of hex digits");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
     }
 
     private void verifyLength(String[] tokens, int length) {
@@ -88,17 +512,10 @@ public class CommandProcessor {
         }
     }
 
-    private String listToString(List<String> list) {
-        if (list.isEmpty()) {
-            return "";
-        }
-        StringBuilder sb = new StringBuilder();
-        for (String s : list) {
-            sb.append(s);
-            sb.append(" ");
+    private void verifyMinLength(String[] tokens, int length) {
+        if (tokens.length < length) {
+            throw new IllegalArgumentException("incorrect number of parameters");
         }
-        sb.setLength(sb.length() - 1);
-        return sb.toString();
     }
 
     private void verbosePrintln(String msg) {
@@ -0,0 +1,251 @@
+package com.kenlai.MKLRedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Hash value type: a map of fields to string values stored under one key.
+ * <p>
+ * Small hashes are packed into a single byte array of length prefixed UTF-8
+ * fields and values, in insertion order, in the manner of a Redis listpack.
+ * Lookups scan the array comparing encoded bytes, and only the value asked
+ * for is decoded, which for a handful of fields is about as fast as hashing
+ * and costs no entry, String or char array objects. Once the hash has more
+ * than hashMaxPackedEntries fields, or a field or value longer than
+ * hashMaxPackedValue bytes, it is converted to a HashMap for good.
+ */
+public class CompactHash {
+    private static final int maxPackedEntries =
+            Integer.getInteger("hashMaxPackedEntries", 64);
+    private static final int maxPackedValue =
+            Integer.getInteger("hashMaxPackedValue", 64);
+
+    /**
+     * field0, value0, field1, value1, ..., each a varint byte length followed
+     * by its UTF-8 bytes; null once converted to table
+     */
+    private byte[] packed = new byte[16];
+    /** bytes of packed in use */
+    private int packedLength;
+    private int packedSize;
+
+    private HashMap<String, String> table;
+
+    public int size() {
+        return table != null ? table.size() : packedSize;
+    }
+
+    boolean isPacked() {
+        return table == null;
+    }
+
+    /**
+     * @return value of field, or null if field is not present
+     */
+    public String get(String field) {
+        if (table != null) {
+            return table.get(field);
+        }
+        int i = indexOf(field.getBytes(StandardCharsets.UTF_8));
+        return i >= 0 ? decode(skip(i)) : null;
+    }
+
+    /**
+     * @return true if field is new, false if its value was updated
+     */
+    public boolean put(String field, String value) {
+        if (table != null) {
+            return table.put(field, value) == null;
+        }
+        byte[] fieldBytes = field.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int i = indexOf(fieldBytes);
+        if (i >= 0) {
+            if (valueBytes.length > maxPackedValue) {
+                convert();
+                table.put(field, value);
+            } else {
+                int valueAt = skip(i);
+                replace(valueAt, skip(valueAt), valueBytes);
+            }
+            return false;
+        }
+        if (packedSize >= maxPackedEntries || fieldBytes.length > maxPackedValue
+                || valueBytes.length > maxPackedValue) {
+            convert();
+            table.put(field, value);
+            return true;
+        }
+        replace(packedLength, packedLength, fieldBytes, valueBytes);
+        packedSize++;
+        return true;
+    }
+
+    /**
+     * @return true if field was present
+     */
+    public boolean remove(String field) {
+        if (table != null) {
+            return table.remove(field) != null;
+        }
+        int i = indexOf(field.getBytes(StandardCharsets.UTF_8));
+        if (i < 0) {
+            return false;
+        }
+        replace(i, skip(skip(i)));
+        packedSize--;
+        return true;
+    }
+
+    /**
+     * Increments the integer value of field by increment. A missing field is
+     * set to 0 before the operation.
+     *
+     * @return value after increment
+     */
+    public long incrBy(String field, long increment) {
+        String value = get(field);
+        long current = 0L;
+        if (value != null) {
+            try {
+                current = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("hash value is not an integer");
+            }
+        }
+        long result = current + increment;
+        put(field, Long.toString(result));
+        return result;
+    }
+
+    public void forEach(BiConsumer<String, String> action) {
+        if (table != null) {
+            table.forEach(action);
+            return;
+        }
+        int pos = 0;
+        while (pos < packedLength) {
+            int valueAt = skip(pos);
+            action.accept(decode(pos), decode(valueAt));
+            pos = skip(valueAt);
+        }
+    }
+
+    public void clear() {
+        if (table != null) {
+            // empties every bucket, rather than leaving the whole table to GC
+            table.clear();
+        }
+        table = null;
+        packed = new byte[16];
+        packedLength = 0;
+        packedSize = 0;
+    }
+
+    /**
+     * @return offset of the entry for field, or -1 if field is not present
+     */
+    private int indexOf(byte[] field) {
+        int pos = 0;
+        while (pos < packedLength) {
+            int length = readLength(pos);
+            int start = pos + lengthSize(length);
+            if (length == field.length && equals(start, field)) {
+                return pos;
+            }
+            pos = skip(start + length);
+        }
+        return -1;
+    }
+
+    private boolean equals(int start, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (packed[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return offset just past the length prefixed string at pos
+     */
+    private int skip(int pos) {
+        int length = readLength(pos);
+        return pos + lengthSize(length) + length;
+    }
+
+    private String decode(int pos) {
+        int length = readLength(pos);
+        return new String(packed, pos + lengthSize(length), length,
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replaces bytes from (inclusive) to to (exclusive) of packed with
+     * strings, each length prefixed, moving the rest of the entries along.
+     */
+    private void replace(int from, int to, byte[]... strings) {
+        int needed = 0;
+        for (byte[] s : strings) {
+            needed += lengthSize(s.length) + s.length;
+        }
+        int newLength = packedLength - (to - from) + needed;
+        if (newLength > packed.length) {
+            packed = Arrays.copyOf(packed, Math.max(newLength, packed.length * 2));
+        }
+        System.arraycopy(packed, to, packed, from + needed, packedLength - to);
+        int pos = from;
+        for (byte[] s : strings) {
+            pos = writeLength(pos, s.length);
+            System.arraycopy(s, 0, packed, pos, s.length);
+            pos += s.length;
+        }
+        packedLength = newLength;
+    }
+
+    /** Lengths are varints: 7 bits per byte, high bit set on all but the last. */
+    private int readLength(int pos) {
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = packed[pos++];
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+        } while (b < 0);
+        return length;
+    }
+
+    /**
+     * @return offset just past the written length
+     */
+    private int writeLength(int pos, int length) {
+        while (length >= 0x80) {
+            packed[pos++] = (byte) (length | 0x80);
+            length >>>= 7;
+        }
+        packed[pos++] = (byte) length;
+        return pos;
+    }
+
+    private static int lengthSize(int length) {
+        int size = 1;
+        while (length >= 0x80) {
+            length >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private void convert() {
+        HashMap<String, String> map = new HashMap<>(packedSize * 2);
+        forEach(map::put);
+        table = map;
+        packed = null;
+        packedLength = 0;
+        packedSize = 0;
+    }
+}
@@ -0,0 +1,376 @@
+package com.kenlai.MKLRedis;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * On-disk tier for values that have not been accessed in a while.
+ * <p>
+ * Values are appended as records to fixed size segment files, each memory
+ * mapped in full, so a record is read back with plain memory access; reading
+ * a cold value costs the page fault that brings its page in. A record holds
+ * the key as well as the value, so compaction can find the keyspace entry
+ * pointing at it:
+ *
+ * <pre>
+ * [key length: int][value length: int][type: byte][key][value]
+ * </pre>
+ * <p>
+ * Records are never modified. When a value is promoted back to memory, deleted
+ * or overwritten, its record is only subtracted from the live bytes of its
+ * segment. Once a full segment is less than half live, compaction copies its
+ * live records to the end of the current segment, a few per call, and then
+ * deletes the file.
+ * <p>
+ * Deleted segments are unmapped right away where the JVM allows it, rather
+ * than when their buffers happen to be garbage collected.
+ * <p>
+ * If a segment cannot be created or written, e.g. because the disk is full,
+ * the tier stops taking values for good and they stay in memory; values
+ * already spilled can still be read.
+ * <p>
+ * The tier does not survive a restart; segment files left in the directory
+ * are removed on startup. Not thread safe; only used from the worker thread.
+ */
+class DiskTier {
+    private static final byte TYPE_STRING = 'S';
+    private static final byte TYPE_LONG = 'L';
+    private static final int HEADER_BYTES = 9;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".tier";
+
+    /** Releases a mapping now; a no-op where the JVM does not allow it. */
+    private static final Consumer<MappedByteBuffer> unmapper = findUnmapper();
+
+    private boolean verbose = Boolean.getBoolean("verbose");
+
+    private final Path directory;
+    private final int segmentBytes;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment current;
+    private int nextId;
+
+    /** segment being compacted, and position of the next record to look at */
+    private Segment compacting;
+    private int compactOffset;
+
+    /** set once writing to the tier has failed */
+    private boolean failed;
+
+    /**
+     * @param segmentBytes size of each segment file; values that do not fit
+     *            in one are never spilled
+     */
+    DiskTier(Path directory, int segmentBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        try {
+            Files.createDirectories(directory);
+            try (DirectoryStream<Path> stale =
+                    Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+                for (Path p : stale) {
+                    Files.delete(p);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends value to the tier.
+     *
+     * @param value String or Long
+     * @return location of the record, or null if it is too large for a
+     *         segment or the tier has failed
+     */
+    SpilledValue write(byte[] key, Object value) {
+        if (failed) {
+            return null;
+        }
+        byte type;
+        byte[] bytes;
+        if (value instanceof Long) {
+            type = TYPE_LONG;
+            bytes = ByteBuffer.allocate(8).putLong((Long) value).array();
+        } else {
+            type = TYPE_STRING;
+            bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        int length = HEADER_BYTES + key.length + bytes.length;
+        if (length > segmentBytes) {
+            return null;
+        }
+        ByteBuffer out = reserve(length);
+        if (out == null) {
+            return null;
+        }
+        int offset = out.position();
+        try {
+            out.putInt(key.length).putInt(bytes.length).put(type).put(key).put(bytes);
+        } catch (InternalError e) {
+            // how the JVM reports a fault writing to a mapped page, e.g.
+            // when the file system is full
+            current.liveBytes -= length;
+            fail("writing " + current.path, e);
+            return null;
+        }
+        return new SpilledValue(current, offset, length);
+    }
+
+    /**
+     * @return the String or Long stored at location
+     */
+    Object read(SpilledValue location) {
+        ByteBuffer in = location.segment.buffer.duplicate();
+        in.position(location.offset);
+        int keyLength = in.getInt();
+        int valueLength = in.getInt();
+        byte type = in.get();
+        in.position(in.position() + keyLength);
+        if (type == TYPE_LONG) {
+            return in.getLong();
+        }
+        byte[] bytes = new byte[valueLength];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Marks the record at location as no longer used.
+     */
+    void free(SpilledValue location) {
+        Segment segment = location.segment;
+        segment.liveBytes -= location.length;
+        if (segment.liveBytes == 0 && segment != current && segment != compacting) {
+            delete(segment);
+        }
+    }
+
+    /**
+     * Moves up to count live records out of a mostly dead segment.
+     *
+     * @param map keyspace the records belong to
+     * @return true if any work was done
+     */
+    boolean compact(KeyspaceTable map, int count) {
+        if (failed) {
+            return false;
+        }
+        if (compacting == null) {
+            compacting = compactionCandidate();
+            compactOffset = 0;
+            if (compacting == null) {
+                return false;
+            }
+        }
+        ByteBuffer in = compacting.buffer.duplicate();
+        for (int i = 0; i < count && compactOffset < compacting.writePosition; i++) {
+            in.position(compactOffset);
+            int keyLength = in.getInt();
+            int length = HEADER_BYTES + keyLength + in.getInt();
+            byte[] key = new byte[keyLength];
+            in.position(compactOffset + HEADER_BYTES);
+            in.get(key);
+            Object value = map.peek(new String(key, StandardCharsets.UTF_8));
+            if (value instanceof SpilledValue) {
+                SpilledValue spilled = (SpilledValue) value;
+                if (spilled.segment == compacting && spilled.offset == compactOffset
+                        && !move(spilled, in)) {
+                    // leave the segment as it is
+                    compacting = null;
+                    return false;
+                }
+            }
+            compactOffset += length;
+        }
+        if (compactOffset >= compacting.writePosition) {
+            delete(compacting);
+            compacting = null;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of segment files in use
+     */
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return whether writing to the tier has failed, so it takes no more values
+     */
+    boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * @return false if the record could not be copied
+     */
+    private boolean move(SpilledValue spilled, ByteBuffer in) {
+        ByteBuffer record = in.duplicate();
+        record.limit(spilled.offset + spilled.length).position(spilled.offset);
+        ByteBuffer out = reserve(spilled.length);
+        if (out == null) {
+            return false;
+        }
+        int offset = out.position();
+        try {
+            out.put(record);
+        } catch (InternalError e) {
+            current.liveBytes -= spilled.length;
+            fail("writing " + current.path, e);
+            return false;
+        }
+        compacting.liveBytes -= spilled.length;
+        spilled.segment = current;
+        spilled.offset = offset;
+        return true;
+    }
+
+    private Segment compactionCandidate() {
+        for (Segment s : segments) {
+            if (s != current && s.liveBytes < s.writePosition / 2) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return buffer positioned at length bytes reserved in the current
+     *         segment, which are counted as live; null if a new segment was
+     *         needed and could not be created
+     */
+    private ByteBuffer reserve(int length) {
+        if (current == null || current.writePosition + length > segmentBytes) {
+            Segment next = openSegment();
+            if (next == null) {
+                return null;
+            }
+            Segment previous = current;
+            current = next;
+            if (previous != null && previous.liveBytes == 0
+                    && previous != compacting) {
+                delete(previous);
+            }
+        }
+        ByteBuffer out = current.buffer.duplicate();
+        out.position(current.writePosition);
+        current.writePosition += length;
+        current.liveBytes += length;
+        return out;
+    }
+
+    /**
+     * @return new current segment, or null if it could not be created
+     */
+    private Segment openSegment() {
+        Path path = directory.resolve(PREFIX + nextId++ + SUFFIX);
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = file.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            Segment segment = new Segment(path, buffer);
+            segments.add(segment);
+            return segment;
+        } catch (IOException | UncheckedIOException e) {
+            fail("creating " + path, e);
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+                // nothing more to do with it
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Removes a segment no longer referenced by any value.
+     */
+    private void delete(Segment segment) {
+        segments.remove(segment);
+        // nothing reads the segment any more, so it is safe to unmap
+        unmapper.accept(segment.buffer);
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            verbosePrintln("tier could not delete " + segment.path + ": " + e);
+        }
+    }
+
+    private void fail(String what, Throwable cause) {
+        failed = true;
+        verbosePrintln("tier failed " + what + ", keeping values in memory: "
+                + cause);
+    }
+
+    /**
+     * Finds a way to release a mapping before its buffer is garbage collected:
+     * Unsafe.invokeCleaner on Java 9 and later, the buffer's cleaner on Java 8.
+     * Both are internal APIs, so if neither is accessible mappings are left
+     * to the garbage collector.
+     */
+    private static Consumer<MappedByteBuffer> findUnmapper() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Object unsafe = theUnsafe.get(null);
+            return buffer -> invoke(invokeCleaner, unsafe, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // not Java 9+
+        }
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+            return buffer -> invoke(clean, invoke(cleaner, buffer));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return buffer -> {
+            };
+        }
+    }
+
+    private static Object invoke(Method method, Object target, Object... args) {
+        try {
+            return method.invoke(target, args);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot unmap segment", e);
+        }
+    }
+
+    private void verbosePrintln(String msg) {
+        if (verbose) {
+            System.out.println(msg);
+        }
+    }
+
+    static class Segment {
+        final Path path;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        /** bytes of records still referenced from the keyspace */
+        long liveBytes;
+
+        Segment(Path path, MappedByteBuffer buffer) {
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -14,6 +14,10 @@ class ExpirableValue {
         this.expiresAt = expiresAt;
     }
 
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
     public boolean isExpired() {
         // TODO: decide if we want the "same ms" to be expired or not.
         return System.currentTimeMillis() > expiresAt;
@@ -0,0 +1,62 @@
+package com.kenlai.MKLRedis;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Maps keys to one of the 16384 cluster hash slots, as CRC16 of the key
+ * modulo 16384. If the key contains a non-empty hash tag between braces, as
+ * in {@code {user1000}.following}, only the tag is hashed, so related keys
+ * can be kept in the same slot.
+ * <p>
+ * The same mapping as Redis Cluster, so keys land in the same slots.
+ */
+public final class HashSlot {
+    public static final int SLOTS = 16384;
+
+    /** CRC16-CCITT (XMODEM), polynomial 0x1021 */
+    private static final int[] CRC16_TABLE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[i] = crc & 0xffff;
+        }
+    }
+
+    private HashSlot() {
+    }
+
+    public static int of(String key) {
+        return of(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static int of(byte[] key) {
+        int start = 0;
+        int end = key.length;
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] == '{') {
+                for (int j = i + 1; j < key.length; j++) {
+                    if (key[j] == '}') {
+                        if (j > i + 1) {
+                            start = i + 1;
+                            end = j;
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        return crc16(key, start, end) & (SLOTS - 1);
+    }
+
+    static int crc16(byte[] bytes, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ bytes[i]) & 0xff]) & 0xffff;
+        }
+        return crc;
+    }
+}
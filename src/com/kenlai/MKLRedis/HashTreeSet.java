@@ -1,18 +1,50 @@
 package com.kenlai.MKLRedis;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 /**
- * TreeSet sorted by member score and hashed by member value, useful for
+ * Set sorted by member score and hashed by member value, useful for
  * changing member score, etc.
  */
-public class HashTreeSet extends TreeSet<ScoredMember> {
+public class HashTreeSet extends AbstractSet<ScoredMember> {
 
-    private static final long serialVersionUID = 1L;
+    private final TreeMap<ScoredMember, Boolean> tree;
+    private final Map<String, ScoredMember> hashMap;
 
-    private Map<String, ScoredMember> hashMap = new HashMap<>();
+    public HashTreeSet() {
+        tree = new TreeMap<>();
+        hashMap = new HashMap<>();
+    }
+
+    private HashTreeSet(TreeMap<ScoredMember, Boolean> tree, int expectedSize) {
+        this.tree = tree;
+        hashMap = new HashMap<>(expectedSize * 4 / 3 + 1);
+    }
+
+    /**
+     * Builds a set from members with distinct values, already in ascending
+     * order. The tree is built bottom-up in linear time by the TreeMap
+     * SortedMap constructor, instead of by n insertions.
+     */
+    static HashTreeSet fromSorted(ScoredMember[] sorted) {
+        HashTreeSet set = new HashTreeSet(
+                new TreeMap<>(new SortedArrayMap(sorted, 0, sorted.length)),
+                sorted.length);
+        for (ScoredMember m : sorted) {
+            set.hashMap.put(m.getMember(), m);
+        }
+        return set;
+    }
 
     @Override
     public boolean add(ScoredMember e) {
@@ -21,17 +53,199 @@ public class HashTreeSet extends TreeSet<ScoredMember> {
             if (existingMember.getScore() == e.getScore()) {
                 return false;
             }
-            super.remove(existingMember);
+            tree.remove(existingMember);
         }
         hashMap.put(e.getMember(), e);
-        return super.add(e) && existingMember != null;
+        return tree.put(e, Boolean.TRUE) == null && existingMember != null;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return tree.containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (tree.remove(o) == null) {
+            return false;
+        }
+        hashMap.remove(((ScoredMember) o).getMember());
+        return true;
+    }
+
+    /**
+     * @return members in ascending order; remove() is supported
+     */
+    @Override
+    public Iterator<ScoredMember> iterator() {
+        final Iterator<ScoredMember> it = tree.keySet().iterator();
+        return new Iterator<ScoredMember>() {
+            private ScoredMember last;
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public ScoredMember next() {
+                last = it.next();
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+                hashMap.remove(last.getMember());
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return tree.size();
+    }
+
+    @Override
+    public void clear() {
+        hashMap.clear();
+        tree.clear();
+    }
+
+    /**
+     * @return lowest scored member, removed from the set, or null if empty
+     */
+    public ScoredMember pollFirst() {
+        Map.Entry<ScoredMember, Boolean> first = tree.pollFirstEntry();
+        if (first == null) {
+            return null;
+        }
+        hashMap.remove(first.getKey().getMember());
+        return first.getKey();
+    }
+
+    /**
+     * Empties the set a member at a time, unlinking every tree node, where
+     * clear() only drops the root and leaves the nodes to the garbage
+     * collector. Takes O(n log n); meant for the lazy free thread.
+     */
+    void dismantle() {
+        while (tree.pollFirstEntry() != null) {
+        }
+        hashMap.clear();
     }
 
     public boolean removeByMember(String value) {
         ScoredMember remove = hashMap.remove(value);
         if (remove != null) {
-            return super.remove(remove);
+            return tree.remove(remove) != null;
         }
         return false;
     }
+
+    /**
+     * Read-only SortedMap view of a range of a sorted array, mapping each
+     * member to TRUE.
+     */
+    private static class SortedArrayMap extends AbstractMap<ScoredMember, Boolean>
+            implements SortedMap<ScoredMember, Boolean> {
+        private final ScoredMember[] members;
+        private final int from;
+        private final int to;
+
+        SortedArrayMap(ScoredMember[] members, int from, int to) {
+            this.members = members;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Set<Map.Entry<ScoredMember, Boolean>> entrySet() {
+            return new AbstractSet<Map.Entry<ScoredMember, Boolean>>() {
+                @Override
+                public Iterator<Map.Entry<ScoredMember, Boolean>> iterator() {
+                    return new Iterator<Map.Entry<ScoredMember, Boolean>>() {
+                        private int i = from;
+
+                        @Override
+                        public boolean hasNext() {
+                            return i < to;
+                        }
+
+                        @Override
+                        public Map.Entry<ScoredMember, Boolean> next() {
+                            if (i >= to) {
+                                throw new NoSuchElementException();
+                            }
+                            return new SimpleImmutableEntry<>(members[i++], Boolean.TRUE);
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return to - from;
+                }
+            };
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof ScoredMember
+                    && Arrays.binarySearch(members, from, to, key) >= 0;
+        }
+
+        @Override
+        public Boolean get(Object key) {
+            return containsKey(key) ? Boolean.TRUE : null;
+        }
+
+        @Override
+        public Comparator<? super ScoredMember> comparator() {
+            return null;
+        }
+
+        /**
+         * @return index of the first member not below key
+         */
+        private int indexOf(ScoredMember key) {
+            int i = Arrays.binarySearch(members, from, to, key);
+            return i >= 0 ? i : -(i + 1);
+        }
+
+        @Override
+        public SortedMap<ScoredMember, Boolean> subMap(ScoredMember fromKey,
+                ScoredMember toKey) {
+            if (fromKey.compareTo(toKey) > 0) {
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+            return new SortedArrayMap(members, indexOf(fromKey), indexOf(toKey));
+        }
+
+        @Override
+        public SortedMap<ScoredMember, Boolean> headMap(ScoredMember toKey) {
+            return new SortedArrayMap(members, from, indexOf(toKey));
+        }
+
+        @Override
+        public SortedMap<ScoredMember, Boolean> tailMap(ScoredMember fromKey) {
+            return new SortedArrayMap(members, indexOf(fromKey), to);
+        }
+
+        @Override
+        public ScoredMember firstKey() {
+            if (from == to) {
+                throw new NoSuchElementException();
+            }
+            return members[from];
+        }
+
+        @Override
+        public ScoredMember lastKey() {
+            if (from == to) {
+                throw new NoSuchElementException();
+            }
+            return members[to - 1];
+        }
+    }
 }
@@ -0,0 +1,364 @@
+package com.kenlai.MKLRedis;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HyperLogLog value type, estimating the number of distinct elements added
+ * with a standard error of about 0.81%, using 16384 registers.
+ * <p>
+ * A new HyperLogLog starts sparse: only the registers that are non-zero are
+ * kept, as a sorted array of (register index, value) entries. Once that grows
+ * past hllSparseMaxBytes it is converted to the dense form, every register
+ * packed in 6 bits, 12KB in total.
+ * <p>
+ * The last estimate is cached and reused until a register changes. Merging
+ * works on plain byte-per-register arrays, so it is a simple max over two
+ * arrays that the JIT can vectorize.
+ */
+public class HyperLogLog {
+    static final int P = 14;
+    static final int REGISTERS = 1 << P;
+    /** Bits of the hash left after taking the register index. */
+    static final int Q = 64 - P;
+    private static final int BITS = 6;
+    private static final int REGISTER_MAX = (1 << BITS) - 1;
+    static final int DENSE_BYTES = (REGISTERS * BITS + 7) / 8;
+
+    private static final int sparseMaxEntries =
+            Integer.getInteger("hllSparseMaxBytes", 3000) / 4;
+
+    private static final double ALPHA_INF = 0.5 / Math.log(2);
+
+    /** (index << 8) | value for each non-zero register, ordered by index */
+    private int[] sparse = new int[8];
+    private int sparseSize;
+
+    /** packed 6-bit registers; null while sparse */
+    private byte[] dense;
+
+    private long cachedCount = -1;
+
+    public boolean isSparse() {
+        return dense == null;
+    }
+
+    /**
+     * @return true if a register was updated, i.e. the estimate may have
+     *         changed
+     */
+    public boolean add(String element) {
+        byte[] bytes = element.getBytes(StandardCharsets.UTF_8);
+        long hash = murmurHash64A(bytes, 0xadc83b19);
+        int index = (int) (hash & (REGISTERS - 1));
+        // Set a sentinel bit so the count is at most Q + 1.
+        long rest = (hash >>> P) | (1L << Q);
+        int count = Long.numberOfTrailingZeros(rest) + 1;
+        return updateRegister(index, count);
+    }
+
+    /**
+     * @return the estimated number of distinct elements added
+     */
+    public long count() {
+        if (cachedCount < 0) {
+            cachedCount = estimate(histogram());
+        }
+        return cachedCount;
+    }
+
+    /**
+     * Raise each register of registers to this HyperLogLog's, if lower.
+     *
+     * @param registers one byte per register
+     */
+    void maxInto(byte[] registers) {
+        if (dense == null) {
+            for (int i = 0; i < sparseSize; i++) {
+                int index = sparse[i] >>> 8;
+                int value = sparse[i] & 0xff;
+                if (value > registers[index]) {
+                    registers[index] = (byte) value;
+                }
+            }
+            return;
+        }
+        byte[] unpacked = new byte[REGISTERS];
+        unpack(dense, unpacked);
+        for (int i = 0; i < REGISTERS; i++) {
+            registers[i] = (byte) Math.max(registers[i], unpacked[i]);
+        }
+    }
+
+    /**
+     * Replace the contents of this HyperLogLog with registers.
+     *
+     * @param registers one byte per register
+     */
+    void setRegisters(byte[] registers) {
+        int nonZero = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            if (registers[i] != 0) {
+                nonZero++;
+            }
+        }
+        cachedCount = -1;
+        if (nonZero > sparseMaxEntries) {
+            dense = new byte[DENSE_BYTES];
+            pack(registers, dense);
+            sparse = null;
+            sparseSize = 0;
+            return;
+        }
+        dense = null;
+        sparse = new int[Math.max(8, nonZero)];
+        sparseSize = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            if (registers[i] != 0) {
+                sparse[sparseSize++] = (i << 8) | registers[i];
+            }
+        }
+    }
+
+    /**
+     * Estimates the cardinality of the union of the given registers.
+     *
+     * @param registers one byte per register
+     */
+    static long count(byte[] registers) {
+        int[] histogram = new int[Q + 2];
+        for (int i = 0; i < REGISTERS; i++) {
+            histogram[registers[i]]++;
+        }
+        return estimate(histogram);
+    }
+
+    private boolean updateRegister(int index, int count) {
+        if (dense != null) {
+            if (getDense(dense, index) >= count) {
+                return false;
+            }
+            setDense(dense, index, count);
+            cachedCount = -1;
+            return true;
+        }
+        int pos = sparseSearch(index);
+        if (pos >= 0) {
+            if ((sparse[pos] & 0xff) >= count) {
+                return false;
+            }
+            sparse[pos] = (index << 8) | count;
+            cachedCount = -1;
+            return true;
+        }
+        if (sparseSize >= sparseMaxEntries) {
+            toDense();
+            return updateRegister(index, count);
+        }
+        int insert = -pos - 1;
+        if (sparseSize == sparse.length) {
+            int[] grown = new int[Math.min(sparse.length * 2, sparseMaxEntries)];
+            System.arraycopy(sparse, 0, grown, 0, sparseSize);
+            sparse = grown;
+        }
+        System.arraycopy(sparse, insert, sparse, insert + 1, sparseSize - insert);
+        sparse[insert] = (index << 8) | count;
+        sparseSize++;
+        cachedCount = -1;
+        return true;
+    }
+
+    /**
+     * @return position of index in sparse, or (-(insertion point) - 1)
+     */
+    private int sparseSearch(int index) {
+        int low = 0;
+        int high = sparseSize - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midIndex = sparse[mid] >>> 8;
+            if (midIndex < index) {
+                low = mid + 1;
+            } else if (midIndex > index) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void toDense() {
+        byte[] packed = new byte[DENSE_BYTES];
+        for (int i = 0; i < sparseSize; i++) {
+            setDense(packed, sparse[i] >>> 8, sparse[i] & 0xff);
+        }
+        dense = packed;
+        sparse = null;
+        sparseSize = 0;
+    }
+
+    private int[] histogram() {
+        int[] histogram = new int[Q + 2];
+        if (dense == null) {
+            histogram[0] = REGISTERS - sparseSize;
+            for (int i = 0; i < sparseSize; i++) {
+                histogram[sparse[i] & 0xff]++;
+            }
+        } else {
+            for (int i = 0; i < REGISTERS; i++) {
+                histogram[getDense(dense, i)]++;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Cardinality estimate from the register value histogram, following
+     * Ertl, "New cardinality estimation algorithms for HyperLogLog sketches".
+     * This needs no bias correction tables and holds up for small counts.
+     */
+    private static long estimate(int[] histogram) {
+        double m = REGISTERS;
+        double z = m * tau((m - histogram[Q + 1]) / m);
+        for (int j = Q; j >= 1; j--) {
+            z += histogram[j];
+            z *= 0.5;
+        }
+        z += m * sigma(histogram[0] / m);
+        return Math.round(ALPHA_INF * m * m / z);
+    }
+
+    private static double sigma(double x) {
+        if (x == 1.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double zPrime;
+        double y = 1;
+        double z = x;
+        do {
+            x *= x;
+            zPrime = z;
+            z += x * y;
+            y += y;
+        } while (zPrime != z);
+        return z;
+    }
+
+    private static double tau(double x) {
+        if (x == 0.0 || x == 1.0) {
+            return 0.0;
+        }
+        double zPrime;
+        double y = 1.0;
+        double z = 1 - x;
+        do {
+            x = Math.sqrt(x);
+            zPrime = z;
+            y *= 0.5;
+            z -= Math.pow(1 - x, 2) * y;
+        } while (zPrime != z);
+        return z / 3;
+    }
+
+    private static int getDense(byte[] packed, int index) {
+        int bit = index * BITS;
+        int b = bit >>> 3;
+        int shift = bit & 7;
+        int b0 = packed[b] & 0xff;
+        int b1 = b + 1 < packed.length ? packed[b + 1] & 0xff : 0;
+        return ((b0 >>> shift) | (b1 << (8 - shift))) & REGISTER_MAX;
+    }
+
+    private static void setDense(byte[] packed, int index, int value) {
+        int bit = index * BITS;
+        int b = bit >>> 3;
+        int shift = bit & 7;
+        packed[b] &= ~(REGISTER_MAX << shift);
+        packed[b] |= value << shift;
+        if (shift > 8 - BITS) {
+            packed[b + 1] &= ~(REGISTER_MAX >>> (8 - shift));
+            packed[b + 1] |= value >>> (8 - shift);
+        }
+    }
+
+    private static void unpack(byte[] packed, byte[] registers) {
+        // every 3 bytes hold exactly 4 registers
+        for (int i = 0, b = 0; i < REGISTERS; i += 4, b += 3) {
+            int bits = (packed[b] & 0xff) | (packed[b + 1] & 0xff) << 8
+                    | (packed[b + 2] & 0xff) << 16;
+            registers[i] = (byte) (bits & REGISTER_MAX);
+            registers[i + 1] = (byte) ((bits >>> 6) & REGISTER_MAX);
+            registers[i + 2] = (byte) ((bits >>> 12) & REGISTER_MAX);
+            registers[i + 3] = (byte) ((bits >>> 18) & REGISTER_MAX);
+        }
+    }
+
+    private static void pack(byte[] registers, byte[] packed) {
+        for (int i = 0, b = 0; i < REGISTERS; i += 4, b += 3) {
+            int bits = registers[i] | registers[i + 1] << 6
+                    | registers[i + 2] << 12 | registers[i + 3] << 18;
+            packed[b] = (byte) bits;
+            packed[b + 1] = (byte) (bits >>> 8);
+            packed[b + 2] = (byte) (bits >>> 16);
+        }
+    }
+
+    /**
+     * MurmurHash2, 64-bit version, by Austin Appleby.
+     */
+    @SuppressWarnings("fallthrough")
+    static long murmurHash64A(byte[] data, int seed) {
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        int length = data.length;
+        long h = (seed & 0xffffffffL) ^ (length * m);
+
+        int end = length - (length & 7);
+        for (int i = 0; i < end; i += 8) {
+            long k = (data[i] & 0xffL)
+                    | (data[i + 1] & 0xffL) << 8
+                    | (data[i + 2] & 0xffL) << 16
+                    | (data[i + 3] & 0xffL) << 24
+                    | (data[i + 4] & 0xffL) << 32
+                    | (data[i + 5] & 0xffL) << 40
+                    | (data[i + 6] & 0xffL) << 48
+                    | (data[i + 7] & 0xffL) << 56;
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+
+        switch (length & 7) {
+        case 7:
+            h ^= (data[end + 6] & 0xffL) << 48;
+            // fall through
+        case 6:
+            h ^= (data[end + 5] & 0xffL) << 40;
+            // fall through
+        case 5:
+            h ^= (data[end + 4] & 0xffL) << 32;
+            // fall through
+        case 4:
+            h ^= (data[end + 3] & 0xffL) << 24;
+            // fall through
+        case 3:
+            h ^= (data[end + 2] & 0xffL) << 16;
+            // fall through
+        case 2:
+            h ^= (data[end + 1] & 0xffL) << 8;
+            // fall through
+        case 1:
+            h ^= (data[end] & 0xffL);
+            h *= m;
+            // fall through
+        default:
+        }
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+    }
+}
@@ -0,0 +1,384 @@
+package com.kenlai.MKLRedis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Open-addressing hash table mapping keys to values, used for the keyspace.
+ * <p>
+ * Keys are kept as UTF-8 byte arrays directly in the slot arrays, along with
+ * their hash, instead of a String and an entry node per key as in HashMap.
+ * Lookups by an ASCII String compare against the stored bytes without
+ * encoding the String first.
+ * <p>
+ * Growing the table never happens in one go. When the table gets too full a
+ * second, larger table is allocated and every subsequent operation moves a
+ * few entries across, until the old table is empty and dropped. While this is
+ * in progress, new keys go into the new table and lookups check both.
+ * <p>
+ * Each slot also records when it was last read or written, in units of the
+ * clock set by the store, so cold entries can be found by {@link #scan}.
+ * <p>
+ * Not thread safe; the store is only accessed from the worker thread.
+ */
+class KeyspaceTable {
+    private static final int MIN_CAPACITY = 16;
+    /** Used plus deleted slots, as a fraction of capacity, that triggers a rehash. */
+    private static final float MAX_LOAD = 0.75f;
+    /** Entries moved to the new table per operation. */
+    private static final int REHASH_STEP = 4;
+    /** Empty slots visited per operation while looking for entries to move. */
+    private static final int REHASH_EMPTY_VISITS = REHASH_STEP * 10;
+
+    /** Marks a slot whose entry was removed, so probing continues past it. */
+    private static final byte[] DELETED = new byte[0];
+
+    private Table table;
+    /** Table being drained into {@code table}; null unless rehashing. */
+    private Table old;
+    private int rehashIndex;
+
+    private int clock;
+
+    /**
+     * @param expectedSize number of keys to size the table for without rehashing
+     */
+    KeyspaceTable(int expectedSize) {
+        table = new Table(capacityFor(expectedSize));
+    }
+
+    int size() {
+        return old == null ? table.used : table.used + old.used;
+    }
+
+    boolean isRehashing() {
+        return old != null;
+    }
+
+    /**
+     * Sets the time recorded on entries as they are accessed.
+     */
+    void setClock(int clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Visits entries in slot order, letting the visitor replace their values.
+     * Entries are only visited while no rehash is in progress, so a full pass
+     * may take several rounds.
+     *
+     * @param cursor 0 to start, then the value returned by the previous call
+     * @param count number of slots to look at
+     * @return cursor to continue from; 0 once the pass is complete
+     */
+    int scan(int cursor, int count, SlotVisitor visitor) {
+        if (old != null) {
+            rehashStep();
+            return cursor;
+        }
+        int capacity = table.keys.length;
+        int i = cursor;
+        for (int end = Math.min(capacity, cursor + count); i < end; i++) {
+            byte[] k = table.keys[i];
+            if (k != null && k != DELETED) {
+                table.values[i] = visitor.visit(k, table.values[i], table.clocks[i]);
+            }
+        }
+        return i >= capacity ? 0 : i;
+    }
+
+    /**
+     * Visits every key, in no particular order, until visitor returns false.
+     * Unlike {@link #scan}, this covers both tables while rehashing, and does
+     * not move anything.
+     */
+    void forEachKey(Predicate<byte[]> visitor) {
+        for (Table t : old == null ? new Table[] {table} : new Table[] {old, table}) {
+            for (byte[] k : t.keys) {
+                if (k != null && k != DELETED && !visitor.test(k)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    interface SlotVisitor {
+        /**
+         * @param lastAccess clock when the entry was last read or written
+         * @return value to store for key; value itself to leave it unchanged
+         */
+        Object visit(byte[] key, Object value, int lastAccess);
+    }
+
+    Object get(String key) {
+        rehashStep();
+        Lookup lookup = new Lookup(key);
+        if (old != null) {
+            int i = old.find(lookup);
+            if (i >= 0) {
+                old.clocks[i] = clock;
+                return old.values[i];
+            }
+        }
+        int i = table.find(lookup);
+        if (i < 0) {
+            return null;
+        }
+        table.clocks[i] = clock;
+        return table.values[i];
+    }
+
+    /**
+     * Like {@link #get}, but does not count as an access of key.
+     */
+    Object peek(String key) {
+        Lookup lookup = new Lookup(key);
+        if (old != null) {
+            int i = old.find(lookup);
+            if (i >= 0) {
+                return old.values[i];
+            }
+        }
+        int i = table.find(lookup);
+        return i >= 0 ? table.values[i] : null;
+    }
+
+    /**
+     * @return previous value for key, or null if there was none
+     */
+    Object put(String key, Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null value");
+        }
+        rehashStep();
+        Lookup lookup = new Lookup(key);
+        if (old != null) {
+            int i = old.find(lookup);
+            if (i >= 0) {
+                // Update in place; it moves across with the rest.
+                Object previous = old.values[i];
+                old.values[i] = value;
+                old.clocks[i] = clock;
+                return previous;
+            }
+        }
+        int i = table.find(lookup);
+        if (i >= 0) {
+            Object previous = table.values[i];
+            table.values[i] = value;
+            table.clocks[i] = clock;
+            return previous;
+        }
+        table.insert(lookup.hash, lookup.bytes(), value, clock);
+        if (table.used + table.deleted > table.threshold) {
+            startRehash();
+        }
+        return null;
+    }
+
+    /**
+     * @return value that was removed, or null if key was not present
+     */
+    Object remove(String key) {
+        rehashStep();
+        Lookup lookup = new Lookup(key);
+        if (old != null) {
+            int i = old.find(lookup);
+            if (i >= 0) {
+                return old.delete(i);
+            }
+        }
+        int i = table.find(lookup);
+        return i >= 0 ? table.delete(i) : null;
+    }
+
+    private void startRehash() {
+        if (old != null) {
+            // Filled up again before the last rehash completed; finish it
+            // first. The new table is twice the size, so this is rare.
+            while (old != null) {
+                rehashStep();
+            }
+        }
+        old = table;
+        // Grow if at least half of the slots hold live entries, otherwise
+        // the load is mostly deleted slots and a same-sized table will do.
+        int capacity = old.keys.length;
+        table = new Table(old.used * 2 > capacity ? capacity * 2 : capacity);
+        rehashIndex = 0;
+    }
+
+    /**
+     * Move up to REHASH_STEP entries from the old table into the new one.
+     */
+    private void rehashStep() {
+        if (old == null) {
+            return;
+        }
+        int moved = 0;
+        int visits = REHASH_EMPTY_VISITS;
+        int capacity = old.keys.length;
+        while (moved < REHASH_STEP && rehashIndex < capacity) {
+            byte[] k = old.keys[rehashIndex];
+            if (k != null && k != DELETED) {
+                table.insert(old.hashes[rehashIndex], k, old.values[rehashIndex],
+                        old.clocks[rehashIndex]);
+                old.keys[rehashIndex] = DELETED;
+                old.values[rehashIndex] = null;
+                old.used--;
+                moved++;
+            } else if (--visits == 0) {
+                break;
+            }
+            rehashIndex++;
+        }
+        if (rehashIndex == capacity || old.used == 0) {
+            old = null;
+        }
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD <= size && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * One hash table of linear-probed slots.
+     */
+    private static class Table {
+        final byte[][] keys;
+        final int[] hashes;
+        final Object[] values;
+        final int[] clocks;
+        final int mask;
+        final int threshold;
+        int used;
+        int deleted;
+
+        Table(int capacity) {
+            keys = new byte[capacity][];
+            hashes = new int[capacity];
+            values = new Object[capacity];
+            clocks = new int[capacity];
+            mask = capacity - 1;
+            threshold = (int) (capacity * MAX_LOAD);
+        }
+
+        /**
+         * @return slot index holding key, or -1
+         */
+        int find(Lookup lookup) {
+            int i = lookup.hash & mask;
+            byte[] k;
+            while ((k = keys[i]) != null) {
+                if (k != DELETED && hashes[i] == lookup.hash && lookup.matches(k)) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        /**
+         * Insert a key known not to be present.
+         */
+        void insert(int hash, byte[] key, Object value, int clock) {
+            int i = hash & mask;
+            byte[] k;
+            while ((k = keys[i]) != null && k != DELETED) {
+                i = (i + 1) & mask;
+            }
+            if (k == DELETED) {
+                deleted--;
+            }
+            keys[i] = key;
+            hashes[i] = hash;
+            values[i] = value;
+            clocks[i] = clock;
+            used++;
+        }
+
+        Object delete(int i) {
+            Object value = values[i];
+            keys[i] = DELETED;
+            values[i] = null;
+            used--;
+            deleted++;
+            return value;
+        }
+    }
+
+    /**
+     * Hash of a String key, computed as if over its UTF-8 bytes. The bytes
+     * are only materialized for non-ASCII keys, or when the key is inserted.
+     */
+    private static class Lookup {
+        final String key;
+        final int hash;
+        private byte[] bytes;
+
+        Lookup(String key) {
+            this.key = key;
+            int h = 0;
+            int length = key.length();
+            for (int i = 0; i < length; i++) {
+                char c = key.charAt(i);
+                if (c >= 0x80) {
+                    bytes = key.getBytes(StandardCharsets.UTF_8);
+                    h = hash(bytes);
+                    break;
+                }
+                h = 31 * h + c;
+            }
+            hash = bytes == null ? mix(h) : h;
+        }
+
+        byte[] bytes() {
+            if (bytes == null) {
+                bytes = key.getBytes(StandardCharsets.UTF_8);
+            }
+            return bytes;
+        }
+
+        boolean matches(byte[] k) {
+            if (bytes != null) {
+                return Arrays.equals(k, bytes);
+            }
+            int length = key.length();
+            if (k.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (k[i] != key.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static int hash(byte[] bytes) {
+            int h = 0;
+            for (byte b : bytes) {
+                h = 31 * h + (b & 0xff);
+            }
+            return mix(h);
+        }
+
+        /**
+         * Spread the bits (murmur3 finalizer), since linear probing on the
+         * low bits is sensitive to clustering.
+         */
+        static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.kenlai.MKLRedis;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Releases large values on a background thread. The worker detaches the value
+ * from the keyspace, which is O(1), and hands it over here. The background
+ * thread then takes the value apart element by element, unlinking sorted set
+ * tree nodes and emptying hash tables, so none of that walk happens on the
+ * request path.
+ */
+class LazyFree {
+    private static final ExecutorService executor =
+            Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "lazyfree");
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final int threshold;
+    private final AtomicLong pending = new AtomicLong();
+
+    /**
+     * @param threshold values holding more elements than this are freed in
+     *            the background; smaller ones are simply dropped
+     */
+    LazyFree(int threshold) {
+        this.threshold = threshold;
+    }
+
+    void free(Object value) {
+        if (value instanceof ExpirableValue) {
+            value = ((ExpirableValue) value).value;
+        }
+        if (effort(value) <= threshold) {
+            return;
+        }
+        final Runnable clear;
+        if (value instanceof HashTreeSet) {
+            clear = ((HashTreeSet) value)::dismantle;
+        } else if (value instanceof CompactHash) {
+            clear = ((CompactHash) value)::clear;
+        } else {
+            // nothing to walk; the garbage collector drops it at no cost
+            return;
+        }
+        pending.incrementAndGet();
+        executor.execute(() -> {
+            clear.run();
+            pending.decrementAndGet();
+        });
+    }
+
+    /**
+     * @return number of values queued or being freed
+     */
+    long pending() {
+        return pending.get();
+    }
+
+    /**
+     * @return rough cost of freeing value, in number of elements
+     */
+    static int effort(Object value) {
+        if (value instanceof HashTreeSet) {
+            return ((HashTreeSet) value).size();
+        }
+        if (value instanceof CompactHash) {
+            return ((CompactHash) value).size();
+        }
+        return 1;
+    }
+}
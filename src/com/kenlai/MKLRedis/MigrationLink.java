@@ -0,0 +1,96 @@
+package com.kenlai.MKLRedis;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Blocking connections from the worker to other nodes, used by MIGRATE to
+ * replay keys on their new node. Connections are kept open for the next
+ * MIGRATE to the same node, and dropped on any failure.
+ * <p>
+ * Commands are sent as {@code ASKING <command>}, so the target accepts them
+ * for a slot it is still importing. The target must reply with line
+ * terminated replies, i.e. run with addCrLf.
+ * <p>
+ * Not thread safe; only used from the worker thread.
+ */
+class MigrationLink {
+    private static final int timeoutMillis = Integer.getInteger("migrateTimeout", 5000);
+
+    private final Map<String, Connection> connections = new HashMap<>();
+
+    /**
+     * Sends all commands pipelined, then waits for every reply.
+     *
+     * @throws IOException if node cannot be reached, or rejects a command
+     */
+    void send(String host, int port, List<String> commands) throws IOException {
+        String node = host + ":" + port;
+        Connection connection = connections.get(node);
+        try {
+            if (connection == null) {
+                connection = new Connection(host, port);
+                connections.put(node, connection);
+            }
+            for (String command : commands) {
+                connection.out.write(("ASKING " + command + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            connection.out.flush();
+            for (int i = 0; i < commands.size(); i++) {
+                String reply = connection.in.readLine();
+                if (reply == null) {
+                    throw new IOException(node + " closed the connection");
+                }
+                if (reply.startsWith("ERROR") || reply.startsWith("BUSY")
+                        || reply.startsWith("MOVED") || reply.startsWith("ASK")) {
+                    throw new IOException(node + " replied " + reply);
+                }
+            }
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.close();
+            }
+            connections.remove(node);
+            throw e;
+        }
+    }
+
+    private static class Connection {
+        final Socket socket;
+        final OutputStream out;
+        final BufferedReader in;
+
+        Connection(String host, int port) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+                socket.setSoTimeout(timeoutMillis);
+                socket.setTcpNoDelay(true);
+                out = new BufferedOutputStream(socket.getOutputStream());
+                in = new BufferedReader(new InputStreamReader(
+                        socket.getInputStream(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more to do with it
+            }
+        }
+    }
+}
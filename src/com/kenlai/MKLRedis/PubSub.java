@@ -0,0 +1,188 @@
+package com.kenlai.MKLRedis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+
+/**
+ * Registry of Pub/Sub subscriptions, shared by all connections.
+ * <p>
+ * Publishing never touches the store or its worker thread. A message is
+ * encoded once per channel (and once per matching pattern) into a reference
+ * counted buffer that all subscribers share. Subscribers are grouped by the
+ * event loop serving them, and each event loop gets a single task that writes
+ * the shared buffer to its own subscribers.
+ * <p>
+ * Messages are handed to each subscriber's handler, which queues them behind
+ * any responses it still owes and disconnects subscribers that fall too far
+ * behind.
+ */
+class PubSub {
+    private static final String CRLF = "\r\n";
+
+    private final ConcurrentHashMap<String, Set<Channel>> channels =
+            new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, PatternSubscribers> patterns =
+            new ConcurrentHashMap<>();
+
+    void subscribe(String channel, Channel subscriber) {
+        // add inside compute, so a concurrent unsubscribe cannot drop the set
+        // between creating it and adding to it
+        channels.compute(channel, (c, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = ConcurrentHashMap.newKeySet();
+            }
+            subscribers.add(subscriber);
+            return subscribers;
+        });
+    }
+
+    void unsubscribe(String channel, Channel subscriber) {
+        channels.computeIfPresent(channel, (c, subscribers) -> {
+            subscribers.remove(subscriber);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+
+    void psubscribe(String pattern, Channel subscriber) {
+        patterns.compute(pattern, (p, ps) -> {
+            if (ps == null) {
+                ps = new PatternSubscribers(p);
+            }
+            ps.subscribers.add(subscriber);
+            return ps;
+        });
+    }
+
+    void punsubscribe(String pattern, Channel subscriber) {
+        patterns.computeIfPresent(pattern, (p, ps) -> {
+            ps.subscribers.remove(subscriber);
+            return ps.subscribers.isEmpty() ? null : ps;
+        });
+    }
+
+    /**
+     * Sends message to every subscriber of channel, and of every pattern
+     * matching channel. Returns once the writes are scheduled.
+     *
+     * @return number of subscribers the message was sent to
+     */
+    int publish(String channel, String message, ByteBufAllocator alloc) {
+        Map<EventLoop, List<Delivery>> byLoop = new HashMap<>();
+        List<ByteBuf> encoded = new ArrayList<>();
+        int receivers = 0;
+
+        Set<Channel> subscribers = channels.get(channel);
+        if (subscribers != null && !subscribers.isEmpty()) {
+            ByteBuf buf = ByteBufUtil.writeUtf8(alloc,
+                    "message " + channel + " " + message + CRLF);
+            encoded.add(buf);
+            receivers += addDeliveries(byLoop, subscribers, buf);
+        }
+        for (PatternSubscribers ps : patterns.values()) {
+            if (!ps.regex.matcher(channel).matches()) {
+                continue;
+            }
+            ByteBuf buf = ByteBufUtil.writeUtf8(alloc, "pmessage " + ps.pattern
+                    + " " + channel + " " + message + CRLF);
+            encoded.add(buf);
+            receivers += addDeliveries(byLoop, ps.subscribers, buf);
+        }
+
+        for (Map.Entry<EventLoop, List<Delivery>> e : byLoop.entrySet()) {
+            final List<Delivery> deliveries = e.getValue();
+            EventLoop loop = e.getKey();
+            if (loop.inEventLoop()) {
+                write(deliveries);
+            } else {
+                loop.execute(() -> write(deliveries));
+            }
+        }
+        // drop the publisher's own reference; subscribers hold the rest
+        for (ByteBuf buf : encoded) {
+            buf.release();
+        }
+        return receivers;
+    }
+
+    private static int addDeliveries(Map<EventLoop, List<Delivery>> byLoop,
+            Set<Channel> subscribers, ByteBuf buf) {
+        int count = 0;
+        for (Channel subscriber : subscribers) {
+            // one reference per write, released by the channel once written
+            buf.retain();
+            byLoop.computeIfAbsent(subscriber.eventLoop(), l -> new ArrayList<>())
+                  .add(new Delivery(subscriber, buf));
+            count++;
+        }
+        return count;
+    }
+
+    private static void write(List<Delivery> deliveries) {
+        for (Delivery d : deliveries) {
+            CachingStoreServerHandler handler =
+                    d.subscriber.pipeline().get(CachingStoreServerHandler.class);
+            if (handler == null) {
+                // closed meanwhile
+                d.buf.release();
+                continue;
+            }
+            // duplicate shares content and reference count, but has its own
+            // reader index, so each channel can consume it independently
+            handler.push(d.buf.duplicate());
+        }
+    }
+
+    /**
+     * Converts a glob-style pattern (* and ? wildcards) to a regex.
+     */
+    static Pattern globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        int start = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' || c == '?') {
+                if (i > start) {
+                    sb.append(Pattern.quote(glob.substring(start, i)));
+                }
+                sb.append(c == '*' ? ".*" : ".");
+                start = i + 1;
+            }
+        }
+        if (start < glob.length()) {
+            sb.append(Pattern.quote(glob.substring(start)));
+        }
+        return Pattern.compile(sb.toString(), Pattern.DOTALL);
+    }
+
+    private static class PatternSubscribers {
+        final String pattern;
+        final Pattern regex;
+        final Set<Channel> subscribers = ConcurrentHashMap.newKeySet();
+
+        PatternSubscribers(String pattern) {
+            this.pattern = pattern;
+            this.regex = globToRegex(pattern);
+        }
+    }
+
+    private static class Delivery {
+        final Channel subscriber;
+        final ByteBuf buf;
+
+        Delivery(Channel subscriber, ByteBuf buf) {
+            this.subscriber = subscriber;
+            this.buf = buf;
+        }
+    }
+}
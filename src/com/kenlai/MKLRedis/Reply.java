@@ -0,0 +1,37 @@
+package com.kenlai.MKLRedis;
+
+/**
+ * Destination for the result of a command. CommandProcessor writes each
+ * result through one of these, so the same dispatch code can produce either
+ * a String or bytes ready for the socket.
+ * <p>
+ * A reply is either a single value, an error, or a list written as
+ * beginList, any number of elements, then endList.
+ */
+interface Reply {
+
+    void ok();
+
+    void nil();
+
+    void integer(long value);
+
+    /**
+     * @param value string reply; null writes nil
+     */
+    void string(String value);
+
+    /**
+     * Replaces anything written so far with an error reply.
+     */
+    void error(String message);
+
+    void beginList();
+
+    /**
+     * @param value list element; null writes (nil)
+     */
+    void element(String value);
+
+    void endList();
+}
@@ -4,19 +4,39 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Bounded queue of requests waiting for the single worker thread. When the
+ * queue is full, new requests are rejected right away rather than left to
+ * pile up on the heap until their callers time out.
+ */
 public class RequestQueue {
-    private LinkedBlockingQueue<AsyncTask> taskQueue =
-            new LinkedBlockingQueue<AsyncTask>();
+    private static final int DEFAULT_CAPACITY =
+            Integer.getInteger("queueCapacity", 65536);
+
+    private LinkedBlockingQueue<AsyncTask> taskQueue;
+
+    public RequestQueue() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RequestQueue(int capacity) {
+        taskQueue = new LinkedBlockingQueue<AsyncTask>(capacity);
+    }
 
     /**
      * Enqueue request to be executed by single thread. Returns immediately.
      *
      * @param request full command string
-     * @return CompletableFuture to get result/status of the request
+     * @return CompletableFuture to get result/status of the request; null if
+     *         the queue is at capacity
      */
-    public CompletableFuture<String> add(String request) {
-        CompletableFuture<String> cf = new CompletableFuture<String>();
-        taskQueue.add(new AsyncTask(request, cf));
+    public CompletableFuture<ByteBuf> offer(String request) {
+        CompletableFuture<ByteBuf> cf = new CompletableFuture<ByteBuf>();
+        if (!taskQueue.offer(new AsyncTask(request, cf))) {
+            return null;
+        }
         return cf;
     }
 
@@ -25,18 +45,29 @@ public class RequestQueue {
         return taskQueue.poll(timeout, timeUnit);
     }
 
+    public int size() {
+        return taskQueue.size();
+    }
+
     public static class AsyncTask {
         String request;
-        CompletableFuture<String> future;
-        public AsyncTask(String request, CompletableFuture<String> future) {
+        CompletableFuture<ByteBuf> future;
+        public AsyncTask(String request, CompletableFuture<ByteBuf> future) {
             this.request = request;
             this.future = future;
         }
         public String getRequest() {
             return request;
         }
-        public CompletableFuture<String> getCompletableFuture() {
+        public CompletableFuture<ByteBuf> getCompletableFuture() {
             return future;
         }
+        /**
+         * @return true if the caller has already given up on this request
+         *         (timed out or disconnected), so it need not be executed
+         */
+        public boolean isAbandoned() {
+            return future.isDone();
+        }
     }
 }
@@ -0,0 +1,127 @@
+package com.kenlai.MKLRedis;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Computes the union or intersection of sorted sets for ZUNIONSTORE and
+ * ZINTERSTORE.
+ * <p>
+ * All weighted members are gathered into one array, sorted by member value so
+ * that equal members end up next to each other, and each run of equal members
+ * is combined into one. The result is then sorted by score and turned into a
+ * HashTreeSet in linear time. Above a size threshold both sorts use
+ * Arrays.parallelSort, a fork-join merge sort over all cores.
+ */
+class SortedSetMerge {
+    private static final int parallelThreshold =
+            Integer.getInteger("zstoreParallelThreshold", 65536);
+
+    private static final Comparator<ScoredMember> BY_MEMBER =
+            (a, b) -> a.member.compareTo(b.member);
+
+    enum Aggregate {
+        SUM, MIN, MAX;
+
+        long apply(long a, long b) {
+            switch (this) {
+            case MIN:
+                return Math.min(a, b);
+            case MAX:
+                return Math.max(a, b);
+            default:
+                try {
+                    return Math.addExact(a, b);
+                } catch (ArithmeticException e) {
+                    throw new IllegalArgumentException("score sum overflows");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param inputs snapshot of each input set; null or empty if missing
+     * @param weights multiplier for each input's scores, or null for all 1
+     */
+    static HashTreeSet union(List<ScoredMember[]> inputs, long[] weights,
+            Aggregate aggregate) {
+        return merge(inputs, weights, aggregate, false);
+    }
+
+    /**
+     * @param inputs snapshot of each input set; null or empty if missing
+     * @param weights multiplier for each input's scores, or null for all 1
+     */
+    static HashTreeSet intersect(List<ScoredMember[]> inputs, long[] weights,
+            Aggregate aggregate) {
+        return merge(inputs, weights, aggregate, true);
+    }
+
+    private static HashTreeSet merge(List<ScoredMember[]> inputs, long[] weights,
+            Aggregate aggregate, boolean intersect) {
+        int total = 0;
+        for (ScoredMember[] input : inputs) {
+            int length = input == null ? 0 : input.length;
+            if (intersect && length == 0) {
+                return new HashTreeSet();
+            }
+            total += length;
+        }
+
+        ScoredMember[] all = new ScoredMember[total];
+        int n = 0;
+        for (int i = 0; i < inputs.size(); i++) {
+            ScoredMember[] input = inputs.get(i);
+            if (input == null) {
+                continue;
+            }
+            long weight = weights == null ? 1L : weights[i];
+            for (ScoredMember m : input) {
+                all[n++] = new ScoredMember(weigh(m.score, weight), m.member);
+            }
+        }
+        boolean parallel = total >= parallelThreshold;
+        sort(all, BY_MEMBER, parallel);
+
+        // Combine each run of equal members in place.
+        int required = intersect ? inputs.size() : 1;
+        int out = 0;
+        int i = 0;
+        while (i < total) {
+            ScoredMember first = all[i];
+            long score = first.score;
+            int j = i + 1;
+            while (j < total && all[j].member.equals(first.member)) {
+                score = aggregate.apply(score, all[j].score);
+                j++;
+            }
+            if (j - i >= required) {
+                first.score = score;
+                all[out++] = first;
+            }
+            i = j;
+        }
+
+        ScoredMember[] result = out == total ? all : Arrays.copyOf(all, out);
+        sort(result, null, parallel);
+        return HashTreeSet.fromSorted(result);
+    }
+
+    private static long weigh(long score, long weight) {
+        try {
+            return Math.multiplyExact(score, weight);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("weighted score overflows");
+        }
+    }
+
+    private static void sort(ScoredMember[] a, Comparator<ScoredMember> c,
+            boolean parallel) {
+        if (parallel) {
+            Arrays.parallelSort(a, c);
+        } else {
+            Arrays.sort(a, c);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.kenlai.MKLRedis;
+
+/**
+ * Stands in the keyspace for a value that was moved to the disk tier; only
+ * the location of its record is kept in memory.
+ */
+class SpilledValue {
+    /** segment and offset are updated in place when compaction moves the record */
+    DiskTier.Segment segment;
+    int offset;
+    final int length;
+
+    SpilledValue(DiskTier.Segment segment, int offset, int length) {
+        this.segment = segment;
+        this.offset = offset;
+        this.length = length;
+    }
+}
@@ -0,0 +1,66 @@
+package com.kenlai.MKLRedis;
+
+/**
+ * Builds the reply as a String, in the same text format the server sends.
+ */
+class StringReply implements Reply {
+    private static final String OK = "OK";
+    private static final String NIL = "(nil)";
+    private static final String ERROR = "ERROR ";
+
+    private StringBuilder sb;
+    private String result;
+    private boolean first;
+
+    /**
+     * @return the reply, or null if nothing was written
+     */
+    String result() {
+        return sb != null ? sb.toString() : result;
+    }
+
+    @Override
+    public void ok() {
+        result = OK;
+    }
+
+    @Override
+    public void nil() {
+        result = NIL;
+    }
+
+    @Override
+    public void integer(long value) {
+        result = Long.toString(value);
+    }
+
+    @Override
+    public void string(String value) {
+        result = value != null ? value : NIL;
+    }
+
+    @Override
+    public void error(String message) {
+        sb = null;
+        result = ERROR + message;
+    }
+
+    @Override
+    public void beginList() {
+        sb = new StringBuilder();
+        first = true;
+    }
+
+    @Override
+    public void element(String value) {
+        if (!first) {
+            sb.append(' ');
+        }
+        first = false;
+        sb.append(value != null ? value : NIL);
+    }
+
+    @Override
+    public void endList() {
+    }
+}
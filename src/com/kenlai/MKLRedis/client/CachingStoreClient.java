@@ -0,0 +1,556 @@
+package com.kenlai.MKLRedis.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+
+import com.kenlai.MKLRedis.HashSlot;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.string.StringDecoder;
+import io.netty.handler.codec.string.StringEncoder;
+import io.netty.util.CharsetUtil;
+
+/**
+ * Asynchronous client for CachingStoreServer.
+ * <p>
+ * Every command returns a CompletableFuture typed to the reply; call
+ * {@code join()} on it for blocking use. Error replies complete the future
+ * exceptionally with {@link CachingStoreClientException}, as do BUSY replies
+ * from an overloaded server; those commands were not executed and may be
+ * retried.
+ * <p>
+ * The client keeps a fixed pool of connections and hands commands out to them
+ * round-robin. Each connection pipelines automatically: commands issued
+ * concurrently are coalesced into a single write. Commands sent through the
+ * same connection are executed in order, but commands issued from one thread
+ * may land on different connections, so chain on the returned futures when
+ * one command depends on the effect of another.
+ * A pool connection that closes is replaced by a new one when it next comes
+ * up in the rotation; commands go to the other connections meanwhile.
+ * <p>
+ * Against a cluster, connect to any node. MOVED and ASK redirects are
+ * followed transparently, and the slot owners learned from MOVED replies are
+ * remembered, so later commands for those slots go straight to the right
+ * node over one extra connection per node.
+ * <p>
+ * The server must be started with {@code -DaddCrLf=true} so that replies are
+ * line terminated.
+ */
+public class CachingStoreClient implements AutoCloseable {
+    private static final int DEFAULT_POOL_SIZE =
+            Runtime.getRuntime().availableProcessors();
+
+    private static final String NIL = "(nil)";
+    // values never contain spaces, so these cannot match a value
+    private static final String ERROR = "ERROR ";
+    private static final String BUSY = "BUSY ";
+    private static final String MOVED = "MOVED ";
+    private static final String ASK = "ASK ";
+    private static final int MAX_REDIRECTS = 5;
+
+    private static final StringDecoder DECODER = new StringDecoder(CharsetUtil.UTF_8);
+    private static final StringEncoder ENCODER = new StringEncoder(CharsetUtil.UTF_8);
+
+    private final EventLoopGroup group;
+    private final Bootstrap bootstrap;
+    private final String host;
+    private final int port;
+    /** Pool connections; a dead one is replaced by a reconnect on use. */
+    private final AtomicReferenceArray<CompletableFuture<ClientConnection>> connections;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Connections to cluster nodes we were redirected to, by host:port. */
+    private final ConcurrentHashMap<String, CompletableFuture<ClientConnection>> nodes =
+            new ConcurrentHashMap<String, CompletableFuture<ClientConnection>>();
+    /** Owner of each slot, as learned from MOVED replies. */
+    private final AtomicReferenceArray<String> slotOwners =
+            new AtomicReferenceArray<String>(HashSlot.SLOTS);
+    /** Set on the first MOVED reply; until then keys are not hashed. */
+    private volatile boolean clustered;
+
+    public CachingStoreClient(String host, int port) {
+        this(host, port, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Connects the whole pool before returning.
+     *
+     * @param poolSize number of connections to keep open
+     */
+    public CachingStoreClient(String host, int port, int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("poolSize must be positive");
+        }
+        this.host = host;
+        this.port = port;
+        group = new NioEventLoopGroup(poolSize);
+        connections = new AtomicReferenceArray<CompletableFuture<ClientConnection>>(poolSize);
+        Bootstrap b = new Bootstrap();
+        // kept for reconnecting, and for other cluster nodes on redirects
+        bootstrap = b;
+        try {
+            b.group(group)
+             .channel(NioSocketChannel.class)
+             .option(ChannelOption.TCP_NODELAY, true)
+             .option(ChannelOption.SO_KEEPALIVE, true)
+             .handler(new ChannelInitializer<SocketChannel>() {
+                 @Override
+                 public void initChannel(SocketChannel ch) throws Exception {
+                     ChannelPipeline pipeline = ch.pipeline();
+                     pipeline.addLast(new LineBasedFrameDecoder(Integer.MAX_VALUE));
+                     pipeline.addLast(DECODER);
+                     pipeline.addLast(ENCODER);
+                     pipeline.addLast(new ClientConnection.ReplyHandler());
+                 }
+             });
+            for (int i = 0; i < poolSize; i++) {
+                Channel channel = b.connect(host, port).sync().channel();
+                connections.set(i, CompletableFuture.completedFuture(
+                        new ClientConnection(channel, channel.pipeline().get(
+                                ClientConnection.ReplyHandler.class))));
+            }
+        } catch (Exception e) {
+            group.shutdownGracefully();
+            throw new CachingStoreClientException(
+                    "unable to connect to " + host + ":" + port, e);
+        }
+    }
+
+    public CompletableFuture<String> set(String key, String value) {
+        return send(STRING, "SET", key, value);
+    }
+
+    /**
+     * @param timeToLive expire time, in seconds
+     */
+    public CompletableFuture<String> set(String key, String value, long timeToLive) {
+        return send(STRING, "SET", key, value, "EX", Long.toString(timeToLive));
+    }
+
+    /**
+     * @return the value of key, or null when key does not exist
+     */
+    public CompletableFuture<String> get(String key) {
+        return send(STRING, "GET", key);
+    }
+
+    /**
+     * @return number of keys that were removed
+     */
+    public CompletableFuture<Long> del(String key) {
+        return send(INTEGER, "DEL", key);
+    }
+
+    /**
+     * Like {@link #del(String)}, but the server reclaims large values in the
+     * background.
+     *
+     * @return number of keys that were removed
+     */
+    public CompletableFuture<Long> unlink(String key) {
+        return send(INTEGER, "UNLINK", key);
+    }
+
+    public CompletableFuture<Long> dbsize() {
+        return send(INTEGER, "DBSIZE");
+    }
+
+    /**
+     * @return value after increment
+     */
+    public CompletableFuture<Long> incr(String key) {
+        return send(INTEGER, "INCR", key);
+    }
+
+    public CompletableFuture<String> zadd(String key, long score, String member) {
+        return send(STRING, "ZADD", key, Long.toString(score), member);
+    }
+
+    public CompletableFuture<Long> zcard(String key) {
+        return send(INTEGER, "ZCARD", key);
+    }
+
+    /**
+     * @return 0-based rank of member, or null if member is not in the set
+     */
+    public CompletableFuture<Long> zrank(String key, String member) {
+        return send(INTEGER, "ZRANK", key, member);
+    }
+
+    /**
+     * @param start 0-based index, inclusive; negative counts from the end
+     * @param stop 0-based index, inclusive; negative counts from the end
+     */
+    public CompletableFuture<List<String>> zrange(String key, int start, int stop) {
+        return send(LIST, "ZRANGE", key, Integer.toString(start),
+                Integer.toString(stop));
+    }
+
+    /**
+     * @return number of elements in the resulting sorted set at destination
+     */
+    public CompletableFuture<Long> zunionstore(String destination, String... keys) {
+        return zunionstore(destination, Arrays.asList(keys), null, null);
+    }
+
+    /**
+     * @param weights multiplier for each key's scores, or null
+     * @param aggregate SUM, MIN or MAX, or null for SUM
+     * @return number of elements in the resulting sorted set at destination
+     */
+    public CompletableFuture<Long> zunionstore(String destination,
+            List<String> keys, long[] weights, String aggregate) {
+        return send(INTEGER, zstoreTokens("ZUNIONSTORE", destination, keys,
+                weights, aggregate));
+    }
+
+    /**
+     * @return number of elements in the resulting sorted set at destination
+     */
+    public CompletableFuture<Long> zinterstore(String destination, String... keys) {
+        return zinterstore(destination, Arrays.asList(keys), null, null);
+    }
+
+    /**
+     * @param weights multiplier for each key's scores, or null
+     * @param aggregate SUM, MIN or MAX, or null for SUM
+     * @return number of elements in the resulting sorted set at destination
+     */
+    public CompletableFuture<Long> zinterstore(String destination,
+            List<String> keys, long[] weights, String aggregate) {
+        return send(INTEGER, zstoreTokens("ZINTERSTORE", destination, keys,
+                weights, aggregate));
+    }
+
+    private static String[] zstoreTokens(String command, String destination,
+            List<String> keys, long[] weights, String aggregate) {
+        List<String> tokens = new ArrayList<String>();
+        tokens.add(command);
+        tokens.add(destination);
+        tokens.add(Integer.toString(keys.size()));
+        tokens.addAll(keys);
+        if (weights != null) {
+            tokens.add("WEIGHTS");
+            for (long weight : weights) {
+                tokens.add(Long.toString(weight));
+            }
+        }
+        if (aggregate != null) {
+            tokens.add("AGGREGATE");
+            tokens.add(aggregate);
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * @return number of fields that were added
+     */
+    public CompletableFuture<Long> hset(String key, String field, String value) {
+        return send(INTEGER, "HSET", key, field, value);
+    }
+
+    /**
+     * @return number of fields that were added
+     */
+    public CompletableFuture<Long> hset(String key, Map<String, String> fields) {
+        List<String> tokens = new ArrayList<String>(fields.size() * 2 + 2);
+        tokens.add("HSET");
+        tokens.add(key);
+        for (Map.Entry<String, String> e : fields.entrySet()) {
+            tokens.add(e.getKey());
+            tokens.add(e.getValue());
+        }
+        return send(INTEGER, tokens.toArray(new String[tokens.size()]));
+    }
+
+    /**
+     * @return value of field, or null if field or key does not exist
+     */
+    public CompletableFuture<String> hget(String key, String field) {
+        return send(STRING, "HGET", key, field);
+    }
+
+    /**
+     * @return values of the fields in order, with null for missing fields
+     */
+    public CompletableFuture<List<String>> hmget(String key, String... fields) {
+        String[] tokens = new String[fields.length + 2];
+        tokens[0] = "HMGET";
+        tokens[1] = key;
+        System.arraycopy(fields, 0, tokens, 2, fields.length);
+        return send(LIST_WITH_NILS, tokens);
+    }
+
+    /**
+     * @return value after increment
+     */
+    public CompletableFuture<Long> hincrby(String key, String field, long increment) {
+        return send(INTEGER, "HINCRBY", key, field, Long.toString(increment));
+    }
+
+    /**
+     * @return all fields and values of the hash; empty if key does not exist
+     */
+    public CompletableFuture<Map<String, String>> hgetall(String key) {
+        return send(LIST, "HGETALL", key).thenApply(list -> {
+            Map<String, String> map = new LinkedHashMap<String, String>();
+            for (int i = 0; i + 1 < list.size(); i += 2) {
+                map.put(list.get(i), list.get(i + 1));
+            }
+            return map;
+        });
+    }
+
+    /**
+     * @return number of fields that were removed
+     */
+    public CompletableFuture<Long> hdel(String key, String... fields) {
+        String[] tokens = new String[fields.length + 2];
+        tokens[0] = "HDEL";
+        tokens[1] = key;
+        System.arraycopy(fields, 0, tokens, 2, fields.length);
+        return send(INTEGER, tokens);
+    }
+
+    /**
+     * @return 1 if the estimated cardinality may have changed, else 0
+     */
+    public CompletableFuture<Long> pfadd(String key, String... elements) {
+        String[] tokens = new String[elements.length + 2];
+        tokens[0] = "PFADD";
+        tokens[1] = key;
+        System.arraycopy(elements, 0, tokens, 2, elements.length);
+        return send(INTEGER, tokens);
+    }
+
+    /**
+     * @return approximate number of distinct elements in the union of keys
+     */
+    public CompletableFuture<Long> pfcount(String... keys) {
+        String[] tokens = new String[keys.length + 1];
+        tokens[0] = "PFCOUNT";
+        System.arraycopy(keys, 0, tokens, 1, keys.length);
+        return send(INTEGER, tokens);
+    }
+
+    public CompletableFuture<String> pfmerge(String destination, String... keys) {
+        String[] tokens = new String[keys.length + 2];
+        tokens[0] = "PFMERGE";
+        tokens[1] = destination;
+        System.arraycopy(keys, 0, tokens, 2, keys.length);
+        return send(STRING, tokens);
+    }
+
+    /**
+     * Subscribing is not offered here: a subscribed connection receives
+     * messages at any time, which would be mistaken for replies on a pooled
+     * connection. Subscribers should use a dedicated connection.
+     *
+     * @return number of subscribers that received the message
+     */
+    public CompletableFuture<Long> publish(String channel, String message) {
+        return send(INTEGER, "PUBLISH", channel, message);
+    }
+
+    @Override
+    public void close() {
+        try {
+            for (int i = 0; i < connections.length(); i++) {
+                ClientConnection connection = connected(connections.get(i));
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+            for (CompletableFuture<ClientConnection> node : nodes.values()) {
+                ClientConnection connection = connected(node);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    private <T> CompletableFuture<T> send(Function<String, T> decoder,
+            String... tokens) {
+        for (String token : tokens) {
+            if (token.isEmpty() || token.indexOf(' ') >= 0
+                    || token.indexOf('\n') >= 0 || token.indexOf('\r') >= 0) {
+                CompletableFuture<T> failed = new CompletableFuture<T>();
+                failed.completeExceptionally(new IllegalArgumentException(
+                        "arguments must be non-empty and contain no whitespace"));
+                return failed;
+            }
+        }
+        String request = String.join(" ", tokens);
+        // tokens[1] is the key, or the first key, of every keyed command
+        int slot = clustered && tokens.length > 1 ? HashSlot.of(tokens[1]) : -1;
+        String node = slot >= 0 ? slotOwners.get(slot) : null;
+        return dispatch(request, node, 0).thenApply(reply -> {
+            if (reply.startsWith(ERROR) || reply.startsWith(BUSY)) {
+                throw new CachingStoreClientException(reply);
+            }
+            return decoder.apply(reply);
+        });
+    }
+
+    /**
+     * Sends request to node, following redirects.
+     *
+     * @param node host:port, or null for the pool
+     */
+    private CompletableFuture<String> dispatch(String request, String node,
+            int redirects) {
+        CompletableFuture<String> reply = node == null
+                ? nextConnection().thenCompose(c -> c.send(request))
+                : connect(node).thenCompose(c -> c.send(request));
+        return reply.thenCompose(r -> {
+            boolean moved = r.startsWith(MOVED);
+            if (!moved && !r.startsWith(ASK)) {
+                return CompletableFuture.completedFuture(r);
+            }
+            if (redirects >= MAX_REDIRECTS) {
+                throw new CachingStoreClientException("too many redirects: " + r);
+            }
+            String[] parts = r.split(" ");
+            String target = parts[2];
+            if (moved) {
+                clustered = true;
+                slotOwners.set(Integer.parseInt(parts[1]), target);
+                return dispatch(request, target, redirects + 1);
+            }
+            // ASK only redirects this one command
+            return dispatch("ASKING " + request, target, redirects + 1);
+        });
+    }
+
+    /**
+     * @param node host:port
+     * @return open connection to node, connecting if needed
+     */
+    private CompletableFuture<ClientConnection> connect(String node) {
+        CompletableFuture<ClientConnection> existing = nodes.get(node);
+        if (existing != null && !isDead(existing)) {
+            return existing;
+        }
+        CompletableFuture<ClientConnection> connection =
+                new CompletableFuture<ClientConnection>();
+        if (existing == null ? nodes.putIfAbsent(node, connection) != null
+                : !nodes.replace(node, existing, connection)) {
+            // another caller is connecting already
+            return connect(node);
+        }
+        int colon = node.lastIndexOf(':');
+        open(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)),
+                connection);
+        return connection;
+    }
+
+    /**
+     * Connects to host:port in the background, completing connection.
+     */
+    private void open(String host, int port,
+            CompletableFuture<ClientConnection> connection) {
+        bootstrap.connect(host, port)
+                .addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture f) {
+                        if (f.isSuccess()) {
+                            connection.complete(new ClientConnection(f.channel(),
+                                    f.channel().pipeline().get(
+                                            ClientConnection.ReplyHandler.class)));
+                        } else {
+                            connection.completeExceptionally(
+                                    new CachingStoreClientException("unable to connect to "
+                                            + host + ":" + port, f.cause()));
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Picks the next pool connection round-robin, skipping closed ones. A
+     * closed connection is reconnected in the background as it is passed
+     * over; if none is open, the caller waits for the reconnect.
+     */
+    private CompletableFuture<ClientConnection> nextConnection() {
+        int size = connections.length();
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        for (int n = 0; n < size; n++) {
+            int i = (start + n) % size;
+            CompletableFuture<ClientConnection> connection = connections.get(i);
+            if (isDead(connection)) {
+                CompletableFuture<ClientConnection> replacement =
+                        new CompletableFuture<ClientConnection>();
+                if (connections.compareAndSet(i, connection, replacement)) {
+                    open(host, port, replacement);
+                }
+            } else if (connection.isDone()) {
+                return connection;
+            }
+        }
+        return connections.get(start);
+    }
+
+    /**
+     * @return whether connection failed to connect or has since closed
+     */
+    private static boolean isDead(CompletableFuture<ClientConnection> connection) {
+        return connection.isCompletedExceptionally()
+                || connection.isDone() && !connection.getNow(null).isActive();
+    }
+
+    /**
+     * @return the connection, or null if it is still connecting or failed to
+     */
+    private static ClientConnection connected(
+            CompletableFuture<ClientConnection> connection) {
+        return connection.isCompletedExceptionally() ? null : connection.getNow(null);
+    }
+
+    /**
+     * @return pool connection i, or null while it is reconnecting or after
+     *         reconnecting failed
+     */
+    ClientConnection connection(int i) {
+        return connected(connections.get(i));
+    }
+
+    private static final Function<String, String> STRING =
+            reply -> NIL.equals(reply) ? null : reply;
+
+    private static final Function<String, Long> INTEGER =
+            reply -> NIL.equals(reply) ? null : Long.valueOf(reply);
+
+    private static final Function<String, List<String>> LIST =
+            reply -> reply.isEmpty() ? Collections.<String>emptyList()
+                    : new ArrayList<String>(Arrays.asList(reply.split(" ")));
+
+    private static final Function<String, List<String>> LIST_WITH_NILS =
+            reply -> {
+                List<String> list = LIST.apply(reply);
+                list.replaceAll(STRING::apply);
+                return list;
+            };
+}
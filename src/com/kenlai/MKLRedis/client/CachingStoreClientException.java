@@ -0,0 +1,18 @@
+package com.kenlai.MKLRedis.client;
+
+/**
+ * Raised (through the returned CompletableFuture) when the server replies with
+ * an error, or when the connection carrying the command is lost.
+ */
+public class CachingStoreClientException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CachingStoreClientException(String message) {
+        super(message);
+    }
+
+    public CachingStoreClientException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,154 @@
+package com.kenlai.MKLRedis.client;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+
+/**
+ * A single connection to the server with automatic pipelining.
+ * <p>
+ * Callers on any thread append to a lock-free outbound queue. The first
+ * caller to find the queue idle schedules a drain on the channel's event
+ * loop, which writes everything queued so far and flushes once, so commands
+ * from concurrent callers are coalesced into a single socket write.
+ * <p>
+ * The server answers each connection's commands in order, so replies are
+ * matched to commands with a FIFO of in-flight futures that is only touched
+ * from the event loop.
+ */
+class ClientConnection {
+    private final Channel channel;
+    private final ReplyHandler handler;
+
+    private final Queue<PendingCommand> outbound =
+            new ConcurrentLinkedQueue<PendingCommand>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    /** Commands sent, and socket flushes they took; written on event loop. */
+    private volatile long commandsWritten;
+    private volatile long flushes;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    ClientConnection(Channel channel, ReplyHandler handler) {
+        this.channel = channel;
+        this.handler = handler;
+    }
+
+    /**
+     * Queue a command line for sending. Returns immediately.
+     *
+     * @param request full command string, without line terminator
+     * @return CompletableFuture completed with the raw reply line
+     */
+    CompletableFuture<String> send(String request) {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        if (!channel.isActive()) {
+            future.completeExceptionally(
+                    new CachingStoreClientException("connection closed"));
+            return future;
+        }
+        outbound.add(new PendingCommand(request, future));
+        if (drainScheduled.compareAndSet(false, true)) {
+            channel.eventLoop().execute(drainTask);
+        }
+        return future;
+    }
+
+    private void drain() {
+        // Clear the flag before polling, so a command added after the last
+        // poll always schedules another drain.
+        drainScheduled.set(false);
+        PendingCommand command;
+        boolean written = false;
+        while ((command = outbound.poll()) != null) {
+            if (!channel.isActive()) {
+                command.future.completeExceptionally(
+                        new CachingStoreClientException("connection closed"));
+                continue;
+            }
+            handler.inFlight.add(command);
+            channel.write(command.request + "\n");
+            commandsWritten++;
+            written = true;
+        }
+        if (written) {
+            channel.flush();
+            flushes++;
+        }
+    }
+
+    long commandsWritten() {
+        return commandsWritten;
+    }
+
+    long flushes() {
+        return flushes;
+    }
+
+    boolean isActive() {
+        return channel.isActive();
+    }
+
+    void close() {
+        channel.close().syncUninterruptibly();
+    }
+
+    private static class PendingCommand {
+        final String request;
+        final CompletableFuture<String> future;
+
+        PendingCommand(String request, CompletableFuture<String> future) {
+            this.request = request;
+            this.future = future;
+        }
+    }
+
+    /**
+     * Completes in-flight commands in the order their replies arrive.
+     */
+    static class ReplyHandler extends SimpleChannelInboundHandler<String> {
+        private final Queue<PendingCommand> inFlight =
+                new ArrayDeque<PendingCommand>();
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, String reply) {
+            PendingCommand command = inFlight.poll();
+            if (command == null) {
+                // nothing outstanding; unsolicited line from server
+                return;
+            }
+            command.future.complete(reply);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            failAll(new CachingStoreClientException("connection closed"));
+            ctx.fireChannelInactive();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            failAll(new CachingStoreClientException("connection failed", cause));
+            ctx.close();
+        }
+
+        private void failAll(Throwable cause) {
+            PendingCommand command;
+            while ((command = inFlight.poll()) != null) {
+                command.future.completeExceptionally(cause);
+            }
+        }
+    }
+}
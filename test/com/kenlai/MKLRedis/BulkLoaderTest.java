@@ -0,0 +1,54 @@
+package com.kenlai.MKLRedis;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class BulkLoaderTest {
+
+    @Test
+    public void testLoadFile() throws Exception {
+        File file = File.createTempFile("bulk", ".txt");
+        file.deleteOnExit();
+        int count = 200000;
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            for (int i = 0; i < count; i++) {
+                out.println("SET key" + i + " value" + i);
+            }
+            out.print("ZADD set 2 two\r\nZADD set 1 one\n\nbad+line\nSET key0 last");
+        }
+        BulkLoader loader = new BulkLoader(16);
+        long before = System.currentTimeMillis();
+        CachingStore store = loader.load(file.toPath());
+        long after = System.currentTimeMillis();
+        System.out.println("Loaded " + loader.getRecords() + " records in "
+                + Long.toString(after - before) + "ms");
+
+        assertEquals(count + 3, loader.getRecords());
+        assertEquals(1, loader.getErrors());
+        assertEquals(count + 1, store.dbsize());
+        assertEquals("value12345", store.get("key12345"));
+        // later lines win
+        assertEquals("last", store.get("key0"));
+        assertArrayEquals(new Object[] {"one", "two"},
+                store.zrange("set", 0, -1).toArray());
+    }
+
+    @Test
+    public void testLoadStream() throws Exception {
+        String commands = "SET a 1\nINCR a\nSET b x\nDEL b\n";
+        BulkLoader loader = new BulkLoader(16);
+        CachingStore store = loader.load(new ByteArrayInputStream(
+                commands.getBytes(StandardCharsets.UTF_8)));
+        assertEquals(4, loader.getRecords());
+        assertEquals("2", store.get("a"));
+        assertNull(store.get("b"));
+    }
+}
@@ -0,0 +1,154 @@
+package com.kenlai.MKLRedis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.kenlai.MKLRedis.RequestQueue.AsyncTask;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class CachingStoreServerHandlerTest {
+    private RequestQueue queue = new RequestQueue(8);
+    private PubSub pubSub = new PubSub();
+
+    private EmbeddedChannel channel(Long timeoutMillis, int maxInFlight) {
+        return new EmbeddedChannel(new CachingStoreServerHandler(queue,
+                pubSub, false, timeoutMillis, maxInFlight, 1024));
+    }
+
+    /** Plays the worker for the next queued request. */
+    private AsyncTask take() throws InterruptedException {
+        return queue.poll(1, TimeUnit.SECONDS);
+    }
+
+    private static void complete(AsyncTask task, String result) {
+        task.getCompletableFuture().complete(
+                Unpooled.copiedBuffer(result, StandardCharsets.UTF_8));
+    }
+
+    private static String readOutbound(EmbeddedChannel channel) {
+        channel.runPendingTasks();
+        Object response = channel.readOutbound();
+        if (response instanceof ByteBuf) {
+            ByteBuf buf = (ByteBuf) response;
+            String s = buf.toString(StandardCharsets.UTF_8);
+            buf.release();
+            return s;
+        }
+        return (String) response;
+    }
+
+    @Test
+    public void testResponsesKeepRequestOrder() throws Exception {
+        EmbeddedChannel channel = channel(null, 128);
+        channel.writeInbound("GET a");
+        channel.writeInbound("GET b");
+        AsyncTask a = take();
+        AsyncTask b = take();
+
+        complete(b, "B");
+        assertNull(readOutbound(channel));
+        complete(a, "A");
+        assertEquals("A", readOutbound(channel));
+        assertEquals("B", readOutbound(channel));
+        channel.finish();
+    }
+
+    @Test
+    public void testBusyWhenQueueFull() throws Exception {
+        queue = new RequestQueue(1);
+        EmbeddedChannel channel = channel(null, 128);
+        channel.writeInbound("GET a");
+        channel.writeInbound("GET b");
+        // the BUSY reply waits its turn behind the first response
+        assertNull(readOutbound(channel));
+        complete(take(), "A");
+        assertEquals("A", readOutbound(channel));
+        assertTrue(readOutbound(channel).startsWith("BUSY"));
+        assertNull(take());
+        channel.finish();
+    }
+
+    @Test
+    public void testPausesReadingAtMaxInFlight() throws Exception {
+        EmbeddedChannel channel = channel(null, 4);
+        for (int i = 0; i < 3; i++) {
+            channel.writeInbound("GET " + i);
+        }
+        assertTrue(channel.config().isAutoRead());
+        channel.writeInbound("GET 3");
+        assertFalse(channel.config().isAutoRead());
+
+        complete(take(), "0");
+        assertEquals("0", readOutbound(channel));
+        assertFalse(channel.config().isAutoRead());
+        // resumes once half are answered
+        complete(take(), "1");
+        assertEquals("1", readOutbound(channel));
+        assertTrue(channel.config().isAutoRead());
+        channel.finish();
+    }
+
+    @Test
+    public void testTimedOutRequestIsDropped() throws Exception {
+        EmbeddedChannel channel = channel(50L, 128);
+        channel.writeInbound("GET a");
+        Thread.sleep(100L);
+        channel.runScheduledPendingTasks();
+        assertTrue(readOutbound(channel).startsWith("ERROR"));
+
+        AsyncTask task = take();
+        assertTrue(task.isAbandoned());
+        // a late result from the worker is not accepted
+        ByteBuf late = Unpooled.copiedBuffer("A", StandardCharsets.UTF_8);
+        assertFalse(task.getCompletableFuture().complete(late));
+        late.release();
+        assertNull(readOutbound(channel));
+        channel.finish();
+    }
+
+    @Test
+    public void testPublishedMessagesWaitForResponses() throws Exception {
+        EmbeddedChannel channel = channel(null, 128);
+        channel.writeInbound("GET a");
+        channel.writeInbound("SUBSCRIBE news");
+        pubSub.publish("news", "hello", channel.alloc());
+        assertNull(readOutbound(channel));
+
+        complete(take(), "A");
+        assertEquals("A", readOutbound(channel));
+        // terminated like the message, although addCrLf is off
+        assertEquals("subscribe news 1\r\n", readOutbound(channel));
+        assertEquals("message news hello\r\n", readOutbound(channel));
+        channel.finish();
+    }
+
+    @Test
+    public void testSlowSubscriberIsDisconnected() throws Exception {
+        EmbeddedChannel channel = channel(null, 128);
+        channel.writeInbound("GET a");
+        channel.writeInbound("SUBSCRIBE news");
+        // messages of 115 bytes pile up behind the unanswered GET
+        char[] chars = new char[100];
+        Arrays.fill(chars, 'x');
+        String message = new String(chars);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(1, pubSub.publish("news", message, channel.alloc()));
+        }
+        assertTrue(channel.isActive());
+        pubSub.publish("news", message, channel.alloc());
+        assertFalse(channel.isActive());
+        take().getCompletableFuture().cancel(false);
+        channel.finish();
+    }
+}
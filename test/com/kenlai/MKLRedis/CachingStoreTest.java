@@ -2,9 +2,12 @@ package com.kenlai.MKLRedis;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Test;
@@ -147,4 +150,184 @@ public class CachingStoreTest {
         expected = new Object[] {"five", "fiveB", "variable", "ten"};
         assertArrayEquals(expected, list.toArray());
     }
+
+    @Test
+    public void testUnlink() throws Exception {
+        CachingStore store = new CachingStore(16);
+        for (int i = 0; i < 1000; i++) {
+            store.zadd("Z", i, "m" + i);
+        }
+        assertEquals(OK, store.set("S", "S", null));
+        assertEquals(1, store.unlink("Z"));
+        assertEquals(0, store.unlink("Z"));
+        assertEquals(0, store.zcard("Z"));
+        assertEquals(1, store.unlink("S"));
+        assertNull(store.get("S"));
+        assertEquals(0, store.dbsize());
+
+        LazyFree lazyFree = new LazyFree(64);
+        HashTreeSet big = new HashTreeSet();
+        HashTreeSet small = new HashTreeSet();
+        for (int i = 0; i < 1000; i++) {
+            big.add(new ScoredMember(i, "m" + i));
+        }
+        small.add(new ScoredMember(1, "one"));
+        lazyFree.free(big);
+        lazyFree.free(small);
+        for (int i = 0; lazyFree.pending() > 0; i++) {
+            assertTrue(i < 500);
+            Thread.sleep(10L);
+        }
+        // only the large set went through the background thread
+        assertTrue(big.isEmpty());
+        assertFalse(big.removeByMember("m1"));
+        assertEquals(1, small.size());
+    }
+
+    @Test
+    public void testLazyFreeSkipsPlainValues() {
+        LazyFree lazyFree = new LazyFree(0);
+        lazyFree.free("S");
+        lazyFree.free(42L);
+        lazyFree.free(new ExpirableValue("S", Long.MAX_VALUE));
+        lazyFree.free(new HyperLogLog());
+        assertEquals(0, lazyFree.pending());
+    }
+
+    @Test
+    public void testSetDiscardsTimeToLive() throws Exception {
+        CachingStore store = new CachingStore(16);
+        assertEquals(OK, store.set("A", "A", 1L));
+        assertEquals(OK, store.set("A", "B", null));
+        Thread.sleep(1500L);
+        assertEquals("B", store.get("A"));
+        assertEquals(1, store.dbsize());
+    }
+
+    @Test
+    public void testSortedSetUnionIntersect() {
+        CachingStore store = new CachingStore(16);
+        store.zadd("east", 1, "a");
+        store.zadd("east", 2, "b");
+        store.zadd("west", 10, "b");
+        store.zadd("west", 20, "c");
+        String[] keys = {"east", "west", "missing"};
+
+        assertEquals(3, store.zunionstore("u", keys, null,
+                SortedSetMerge.Aggregate.SUM));
+        assertArrayEquals(new Object[] {"a", "b", "c"},
+                store.zrange("u", 0, -1).toArray());
+        assertEquals(0, store.zinterstore("i", keys, null,
+                SortedSetMerge.Aggregate.SUM));
+        assertEquals(0, store.zcard("i"));
+
+        // b: max(2 * 100, 10 * 1) = 200, beats c at 20
+        keys = new String[] {"east", "west"};
+        assertEquals(1, store.zinterstore("i", keys, new long[] {100, 1},
+                SortedSetMerge.Aggregate.MAX));
+        assertEquals(3, store.zunionstore("u", keys, new long[] {100, 1},
+                SortedSetMerge.Aggregate.MAX));
+        assertArrayEquals(new Object[] {"c", "a", "b"},
+                store.zrange("u", 0, -1).toArray());
+
+        // destination may be an input
+        assertEquals(1, store.zinterstore("east", keys, null,
+                SortedSetMerge.Aggregate.MIN));
+        assertEquals(0, (int) store.zrank("east", "b"));
+
+        // large inputs take the parallel path
+        int count = 100000;
+        for (int i = 0; i < count; i++) {
+            store.zadd("big1", i, "m" + i);
+            store.zadd("big2", -i, "m" + (i + count / 2));
+        }
+        keys = new String[] {"big1", "big2"};
+        assertEquals(count + count / 2, store.zunionstore("bigu", keys, null,
+                SortedSetMerge.Aggregate.SUM));
+        assertEquals(count / 2, store.zinterstore("bigi", keys, null,
+                SortedSetMerge.Aggregate.SUM));
+        // m50000 + i scores i + 50000 - i = 50000 in both sets' sum
+        assertEquals(count / 2, store.zrange("bigi", 0, -1).size());
+        assertEquals("m" + (count + count / 2 - 1), store.zrange("bigu", 0, 0).get(0));
+    }
+
+    @Test
+    public void testHash() {
+        CachingStore store = new CachingStore(16);
+        // CASE: not-exist
+        assertNull(store.hget("H", "f"));
+        assertEquals(0, store.hgetall("H").size());
+        assertEquals(0, store.hdel("H", "f"));
+
+        assertEquals(2, store.hset("H", "name", "ken", "visits", "1"));
+        assertEquals(0, store.hset("H", "name", "lai"));
+        assertEquals("lai", store.hget("H", "name"));
+        assertEquals(11, store.hincrby("H", "visits", 10));
+        assertEquals(-1, store.hincrby("H", "new", -1));
+        assertArrayEquals(new Object[] {"lai", null, "11"},
+                store.hmget("H", "name", "missing", "visits").toArray());
+        assertArrayEquals(new Object[] {"name", "lai", "visits", "11", "new", "-1"},
+                store.hgetall("H").toArray());
+
+        // CASE: type checking
+        try {
+            store.hincrby("H", "name", 1);
+            fail("should not be able to HINCRBY string field");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            store.get("H");
+            fail("should not be able to GET hash");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // CASE: removing the last field removes the key
+        assertEquals(3, store.hdel("H", "name", "visits", "new", "missing"));
+        assertEquals(0, store.dbsize());
+    }
+
+    @Test
+    public void testCompactHashConversion() {
+        CompactHash hash = new CompactHash();
+        for (int i = 0; i < 64; i++) {
+            assertTrue(hash.put("f" + i, "v" + i));
+        }
+        assertTrue(hash.isPacked());
+        assertTrue(hash.remove("f0"));
+        assertEquals("v63", hash.get("f63"));
+        assertTrue(hash.put("f64", "v64"));
+        assertTrue(hash.put("f65", "v65"));
+        assertFalse(hash.isPacked());
+        assertEquals(65, hash.size());
+        assertEquals("v1", hash.get("f1"));
+        assertNull(hash.get("f0"));
+    }
+
+    @Test
+    public void testCompactHashPackedUpdates() {
+        CompactHash hash = new CompactHash();
+        assertTrue(hash.put("a", "1"));
+        assertTrue(hash.put("caf\u00e9", "\u20ac"));
+        assertTrue(hash.put("c", "3"));
+        // values grow and shrink in place, moving the entries after them
+        assertFalse(hash.put("a", "a much longer value"));
+        assertFalse(hash.put("caf\u00e9", ""));
+        assertTrue(hash.remove("a"));
+        assertFalse(hash.remove("a"));
+        assertTrue(hash.isPacked());
+        assertEquals(2, hash.size());
+        assertEquals("", hash.get("caf\u00e9"));
+        assertEquals("3", hash.get("c"));
+        assertNull(hash.get("a"));
+
+        // limit is in encoded bytes: 22 three byte characters are too long
+        char[] euros = new char[22];
+        Arrays.fill(euros, '\u20ac');
+        assertFalse(hash.put("c", new String(euros)));
+        assertFalse(hash.isPacked());
+        assertEquals(new String(euros), hash.get("c"));
+        assertEquals("", hash.get("caf\u00e9"));
+    }
 }
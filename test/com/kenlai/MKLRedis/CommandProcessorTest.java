@@ -1,10 +1,19 @@
 package com.kenlai.MKLRedis;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+
 public class CommandProcessorTest {
     private static final String OK = "OK";
     private static final String ERROR = "ERROR";
@@ -32,15 +41,182 @@ public class CommandProcessorTest {
         assertEquals("1", cp.process("ZCARD set"));
         assertEquals("OK", cp.process("ZADD set 10 tenB"));
         assertEquals("1", cp.process("ZRANK set tenB"));
+        assertEquals("(nil)", cp.process("ZRANK set absent"));
+        assertEquals("(nil)", cp.process("ZRANK absent tenB"));
         assertEquals("tenB", cp.process("ZRANGE set -1 -1"));
         assertEquals("OK", cp.process("ZADD set 5 five"));
         assertEquals("five ten tenB", cp.process("ZRANGE set 0 -1"));
+        assertEquals("OK", cp.process("ZADD other 1 ten"));
+        assertEquals("3", cp.process("ZUNIONSTORE union 2 set other"));
+        assertEquals("1", cp.process("ZINTERSTORE inter 2 set other WEIGHTS 1 2 AGGREGATE MIN"));
+        assertEquals("ten", cp.process("ZRANGE inter 0 -1"));
+        assertTrue(cp.process("ZUNIONSTORE union 3 set other").startsWith(ERROR));
+        assertTrue(cp.process("ZUNIONSTORE union 2 set other AGGREGATE AVG").startsWith(ERROR));
+        // scores that overflow are refused, not wrapped around
+        assertTrue(cp.process("ZUNIONSTORE union 2 set other WEIGHTS "
+                + Long.MAX_VALUE + " 1").startsWith(ERROR));
+        assertEquals("OK", cp.process("ZADD big " + Long.MAX_VALUE + " ten"));
+        assertTrue(cp.process("ZUNIONSTORE union 2 set big").startsWith(ERROR));
+        assertEquals("five tenB ten", cp.process("ZRANGE union 0 -1"));
+        assertEquals("1", cp.process("DEL big"));
+        assertEquals("1", cp.process("DEL other"));
+        assertEquals("1", cp.process("DEL union"));
+        assertEquals("1", cp.process("DEL inter"));
+
+        assertEquals("2", cp.process("HSET user name ken city sf"));
+        assertEquals("ken", cp.process("HGET user name"));
+        assertEquals("(nil)", cp.process("HGET user age"));
+        assertEquals("5", cp.process("HINCRBY user age 5"));
+        assertEquals("ken (nil) 5", cp.process("HMGET user name zip age"));
+        assertEquals("name ken city sf age 5", cp.process("HGETALL user"));
+        assertTrue(cp.process("HSET user name").startsWith(ERROR));
+        assertEquals("3", cp.process("HDEL user name city age"));
+        assertEquals("", cp.process("HGETALL user"));
+
+        assertEquals("1", cp.process("PFADD hll a b c"));
+        assertEquals("3", cp.process("PFCOUNT hll"));
+        assertEquals("OK", cp.process("PFMERGE hll2 hll"));
+        assertEquals("3", cp.process("PFCOUNT hll hll2"));
+        assertTrue(cp.process("PFADD set x").startsWith(ERROR));
+        assertEquals("1", cp.process("DEL hll"));
+        assertEquals("1", cp.process("DEL hll2"));
 
         assertTrue(cp.process("GET set").startsWith(ERROR));
         assertTrue(cp.process("INCR set").startsWith(ERROR));
 
         assertEquals("1", cp.process("DEL set"));
         assertEquals("1", cp.process("DBSIZE"));
+
+        assertEquals("OK", cp.process("ZADD big 1 one"));
+        assertEquals("1", cp.process("UNLINK big"));
+        assertEquals("0", cp.process("UNLINK big"));
+        assertEquals("1", cp.process("DBSIZE"));
+    }
+
+    @Test
+    public void testProcessToByteBuf() {
+        String[] requests = {"SET foo bar", "GET foo", "GET missing",
+                "INCR counter", "SET big 123456789012", "INCR big",
+                "SET neg -5", "INCR neg", "ZADD z 2 b", "ZADD z 1 a",
+                "ZRANGE z 0 -1", "ZRANGE z 5 6", "ZRANK z nope",
+                "HSET h f v", "HMGET h f g", "HGETALL h", "DBSIZE",
+                "BAD", "GET z", "What+is&this?"};
+        CommandProcessor byString = new CommandProcessor(new CachingStore(16));
+        CommandProcessor byBuffer = new CommandProcessor(new CachingStore(16));
+        UnpooledByteBufAllocator alloc = new UnpooledByteBufAllocator(false);
+        for (String request : requests) {
+            String expected = byString.process(request);
+            ByteBuf buf = byBuffer.process(request, alloc, true);
+            assertEquals(request, expected + "\r\n",
+                    buf.toString(StandardCharsets.UTF_8));
+            buf.release();
+        }
+        // shared constants are handed out repeatedly
+        for (int i = 0; i < 3; i++) {
+            ByteBuf buf = byBuffer.process("DEL missing", alloc, false);
+            assertEquals("0", buf.toString(StandardCharsets.UTF_8));
+            buf.release();
+        }
+        assertNull(byBuffer.process("", alloc, false));
+    }
+
+    @Test
+    public void testCluster() {
+        assertEquals(0x31c3, HashSlot.crc16(
+                "123456789".getBytes(StandardCharsets.US_ASCII), 0, 9));
+        assertEquals(12182, HashSlot.of("foo"));
+        assertEquals(5061, HashSlot.of("bar"));
+        assertEquals(5061, HashSlot.of("{bar}.tagged"));
+
+        ClusterState cluster =
+                ClusterState.parse("localhost:7000,localhost:7001", "localhost:7000");
+        CommandProcessor node = new CommandProcessor(store, cluster);
+        assertEquals("0 8191 localhost:7000 8192 16383 localhost:7001",
+                node.process("CLUSTER SLOTS"));
+        assertEquals("12182", node.process("CLUSTER KEYSLOT foo"));
+        assertEquals(OK, node.process("SET bar 1"));
+        assertEquals("MOVED 12182 localhost:7001", node.process("GET foo"));
+        assertTrue(node.process("ZUNIONSTORE bar 2 bar foo").startsWith("ERROR CROSSSLOT"));
+        assertEquals("1", node.process("CLUSTER COUNTKEYSINSLOT 5061"));
+        assertEquals("bar", node.process("CLUSTER GETKEYSINSLOT 5061 10"));
+        assertEquals("1", node.process("DBSIZE"));
+
+        // take over foo's slot from the other node
+        assertEquals(OK, node.process("CLUSTER SETSLOT 12182 IMPORTING localhost:7001"));
+        assertEquals("MOVED 12182 localhost:7001", node.process("SET foo 2"));
+        assertEquals(OK, node.process("ASKING SET foo 2"));
+        assertEquals("2", node.process("ASKING GET foo"));
+        assertEquals(OK, node.process("CLUSTER SETSLOT 12182 NODE localhost:7000"));
+        assertEquals("2", node.process("GET foo"));
+
+        // hand bar's slot over to the other node
+        assertEquals(OK, node.process("CLUSTER SETSLOT 5061 MIGRATING localhost:7001"));
+        assertEquals("1", node.process("GET bar"));
+        assertEquals("ASK 5061 localhost:7001", node.process("GET {bar}.tagged"));
+        assertTrue(node.process("PFCOUNT bar {bar}.tagged").startsWith("ERROR TRYAGAIN"));
+        assertEquals(OK, node.process("CLUSTER SETSLOT 5061 NODE localhost:7001"));
+        assertEquals("MOVED 5061 localhost:7001", node.process("GET bar"));
+        assertEquals("0 5060 localhost:7000 5061 5061 localhost:7001"
+                + " 5062 8191 localhost:7000 8192 12181 localhost:7001"
+                + " 12182 12182 localhost:7000 12183 16383 localhost:7001",
+                node.process("CLUSTER SLOTS"));
+        assertTrue(cp.process("CLUSTER SLOTS").startsWith(ERROR));
     }
 
+    @Test
+    public void testDumpRecreatesValue() {
+        assertEquals(OK, cp.process("ZADD set 2 two"));
+        assertEquals(OK, cp.process("ZADD set 1 one"));
+        assertEquals("2", cp.process("HSET hash a 1 b 2"));
+        assertEquals("1", cp.process("PFADD hll x y z"));
+        assertEquals(OK, cp.process("SET ttl value EX 100"));
+
+        CachingStore copy = new CachingStore(16);
+        CommandProcessor copyCp = new CommandProcessor(copy);
+        // a stale copy is replaced, not merged into
+        assertEquals("2", copyCp.process("HSET hash a 0 stale 1"));
+        for (String key : new String[] {"set", "hash", "hll", "ttl"}) {
+            for (String command : store.dump(key)) {
+                String expected = command.startsWith("HSET") ? "2"
+                        : command.startsWith("DEL") ? (key.equals("hash") ? "1" : "0")
+                        : OK;
+                assertEquals(command, expected, copyCp.process(command));
+            }
+        }
+        assertNull(store.dump("missing"));
+        assertEquals("one two", copyCp.process("ZRANGE set 0 -1"));
+        assertEquals("a 1 b 2", copyCp.process("HGETALL hash"));
+        assertEquals("3", copyCp.process("PFCOUNT hll"));
+        assertEquals("value", copyCp.process("GET ttl"));
+        List<String> ttl = copy.dump("ttl");
+        assertEquals("SET ttl value EX 100", ttl.get(ttl.size() - 1));
+    }
+
+    @Test
+    public void testDumpLinesFitWithAskingPrefix() {
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'v');
+        String value = new String(chars);
+        for (int i = 0; i < 50; i++) {
+            assertEquals("1", cp.process("HSET hash f" + i + " " + value));
+        }
+        List<String> dump = store.dump("hash");
+        assertTrue(dump.size() > 2);
+        for (String command : dump) {
+            int bytes = ("ASKING " + command + "\r\n")
+                    .getBytes(StandardCharsets.UTF_8).length;
+            assertTrue(bytes <= CachingStoreServer.MAX_LINE_BYTES);
+        }
+
+        // a value that only just fit in its SET cannot take the prefix
+        chars = new char[CachingStoreServer.MAX_LINE_BYTES - "SET big ".length()];
+        Arrays.fill(chars, 'v');
+        assertEquals(OK, cp.process("SET big " + new String(chars)));
+        try {
+            store.dump("big");
+            fail("value should be too long to migrate");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
 }
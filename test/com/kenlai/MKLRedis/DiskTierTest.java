@@ -0,0 +1,102 @@
+package com.kenlai.MKLRedis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskTierTest {
+    private Path dir;
+
+    @Before
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("tier");
+    }
+
+    @After
+    public void deleteDirectory() throws IOException {
+        if (Files.exists(dir)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path p : files) {
+                    Files.delete(p);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testSpillPromoteAndCompact() throws Exception {
+        DiskTier tier = new DiskTier(dir, 4096);
+        // everything counts as cold right away
+        CachingStore store = new CachingStore(16, tier, 0);
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            store.set("key" + i, "value" + i, null);
+        }
+        store.set("counter", "41", null);
+        store.set("expiring", "soon", 1000L);
+        store.zadd("set", 1, "one");
+        for (int i = 0; i < 1000 && store.maintenance(); i++) {
+        }
+        int segments = tier.segmentCount();
+        assertTrue(segments > 10);
+
+        assertEquals("value7", store.get("key7"));
+        assertEquals(42L, store.incr("counter"));
+        assertEquals("soon", store.get("expiring"));
+        assertEquals(1, store.zcard("set"));
+        try {
+            store.zadd("key8", 1, "one");
+            fail("spilled string should still be a string");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals("OK", store.set("key9", "new", null));
+        assertEquals("new", store.get("key9"));
+        assertNull(store.get("missing"));
+
+        // drop most records, leaving every segment mostly dead
+        for (int i = 10; i < count; i++) {
+            if (i % 4 != 0) {
+                assertEquals(1, store.del("key" + i));
+            }
+        }
+        for (int i = 0; i < 1000 && store.maintenance(); i++) {
+        }
+        assertTrue(tier.segmentCount() < segments / 2);
+        for (int i = 10; i < count; i++) {
+            assertEquals(i % 4 == 0 ? "value" + i : null, store.get("key" + i));
+        }
+        // key0-key9, every 4th of key12-key1996, and the three other keys
+        assertEquals(10 + 497 + 3, store.dbsize());
+    }
+
+    @Test
+    public void testKeepsValuesInMemoryWhenTierFails() throws Exception {
+        DiskTier tier = new DiskTier(dir, 4096);
+        CachingStore store = new CachingStore(16, tier, 0);
+        for (int i = 0; i < 100; i++) {
+            store.set("key" + i, "value" + i, null);
+        }
+        // segments can no longer be created
+        Files.delete(dir);
+        for (int i = 0; i < 100 && store.maintenance(); i++) {
+        }
+        assertTrue(tier.isFailed());
+        assertEquals(0, tier.segmentCount());
+        assertFalse(store.maintenance());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, store.get("key" + i));
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.kenlai.MKLRedis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void testAccuracy() {
+        HyperLogLog hll = new HyperLogLog();
+        for (int count = 1; count <= 1000000; count *= 10) {
+            hll = new HyperLogLog();
+            for (int i = 0; i < count; i++) {
+                hll.add("element" + i);
+            }
+            long estimate = hll.count();
+            double error = Math.abs(estimate - count) / (double) count;
+            System.out.println("HyperLogLog estimate " + estimate + " for "
+                    + count + " (error " + error + ")");
+            assertTrue(error < 0.03);
+        }
+        assertFalse(hll.isSparse());
+        // adding again changes nothing
+        assertFalse(hll.add("element0"));
+    }
+
+    @Test
+    public void testSparseToDense() {
+        HyperLogLog hll = new HyperLogLog();
+        for (int i = 0; i < 100; i++) {
+            hll.add("e" + i);
+        }
+        assertTrue(hll.isSparse());
+        long sparseCount = hll.count();
+        assertEquals(100, sparseCount, 2);
+
+        byte[] registers = new byte[HyperLogLog.REGISTERS];
+        hll.maxInto(registers);
+        assertEquals(sparseCount, HyperLogLog.count(registers));
+
+        for (int i = 100; i < 5000; i++) {
+            hll.add("e" + i);
+        }
+        assertFalse(hll.isSparse());
+        assertEquals(5000, hll.count(), 150);
+    }
+
+    @Test
+    public void testStoreCommands() {
+        CachingStore store = new CachingStore(16);
+        assertEquals(0, store.pfcount("visitors"));
+        assertEquals(1, store.pfadd("visitors", "a", "b", "c"));
+        assertEquals(0, store.pfadd("visitors", "a"));
+        assertEquals(3, store.pfcount("visitors"));
+
+        for (int i = 0; i < 20000; i++) {
+            store.pfadd("hour1", "user" + i);
+            store.pfadd("hour2", "user" + (i + 10000));
+        }
+        long union = store.pfcount("hour1", "hour2");
+        assertEquals(30000, union, 900);
+        assertEquals("OK", store.pfmerge("day", "hour1", "hour2"));
+        assertEquals(union, store.pfcount("day"));
+        assertEquals(20000, store.pfcount("hour1"), 600);
+    }
+}
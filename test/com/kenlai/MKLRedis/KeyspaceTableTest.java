@@ -0,0 +1,57 @@
+package com.kenlai.MKLRedis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class KeyspaceTableTest {
+
+    @Test
+    public void testIncrementalRehash() {
+        KeyspaceTable table = new KeyspaceTable(0);
+        boolean sawRehash = false;
+        for (int i = 0; i < 10000; i++) {
+            assertNull(table.put("k" + i, i));
+            sawRehash |= table.isRehashing();
+            // every key stays reachable while entries move across
+            assertEquals(i / 2, table.get("k" + (i / 2)));
+        }
+        assertTrue(sawRehash);
+        assertEquals(10000, table.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, table.get("k" + i));
+        }
+    }
+
+    @Test
+    public void testAgainstHashMap() {
+        Random random = new Random(42);
+        KeyspaceTable table = new KeyspaceTable(16);
+        Map<String, Object> expected = new HashMap<>();
+        String[] prefixes = {"key", "clé", "键", ""};
+        for (int op = 0; op < 200000; op++) {
+            String key = prefixes[random.nextInt(prefixes.length)]
+                    + random.nextInt(5000);
+            switch (random.nextInt(3)) {
+            case 0:
+                assertEquals(expected.put(key, op), table.put(key, op));
+                break;
+            case 1:
+                assertEquals(expected.remove(key), table.remove(key));
+                break;
+            default:
+                assertEquals(expected.get(key), table.get(key));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        for (Map.Entry<String, Object> e : expected.entrySet()) {
+            assertEquals(e.getValue(), table.get(e.getKey()));
+        }
+    }
+}
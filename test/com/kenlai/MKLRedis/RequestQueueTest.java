@@ -0,0 +1,45 @@
+package com.kenlai.MKLRedis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import com.kenlai.MKLRedis.RequestQueue.AsyncTask;
+
+import io.netty.buffer.ByteBuf;
+
+public class RequestQueueTest {
+
+    @Test
+    public void testBoundedCapacity() throws Exception {
+        RequestQueue queue = new RequestQueue(2);
+        assertNotNull(queue.offer("GET a"));
+        assertNotNull(queue.offer("GET b"));
+        assertNull(queue.offer("GET c"));
+        assertEquals(2, queue.size());
+
+        assertEquals("GET a", queue.poll(1, TimeUnit.SECONDS).getRequest());
+        assertNotNull(queue.offer("GET c"));
+    }
+
+    @Test
+    public void testAbandonedTask() throws Exception {
+        RequestQueue queue = new RequestQueue(2);
+        CompletableFuture<ByteBuf> timedOut = queue.offer("GET a");
+        queue.offer("GET b");
+        timedOut.completeExceptionally(new TimeoutException());
+
+        AsyncTask t = queue.poll(1, TimeUnit.SECONDS);
+        assertTrue(t.isAbandoned());
+        t = queue.poll(1, TimeUnit.SECONDS);
+        assertFalse(t.isAbandoned());
+    }
+}
@@ -0,0 +1,208 @@
+package com.kenlai.MKLRedis.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.kenlai.MKLRedis.CachingStoreServer;
+
+public class CachingStoreClientTest {
+    private static final String OK = "OK";
+
+    private static int port;
+    private static CachingStoreClient client;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            port = s.getLocalPort();
+        }
+        // replies must be line terminated for the client to frame them; the
+        // server reads this as it is constructed
+        System.setProperty("addCrLf", "true");
+        CachingStoreServer instance = new CachingStoreServer(port);
+        Thread server = new Thread(() -> {
+            try {
+                instance.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+
+        for (int attempt = 0; client == null; attempt++) {
+            try {
+                client = new CachingStoreClient("localhost", port, 2);
+            } catch (CachingStoreClientException e) {
+                if (attempt > 50) {
+                    throw e;
+                }
+                Thread.sleep(100L);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void stopClient() {
+        client.close();
+    }
+
+    @Test
+    public void testTypedCommands() {
+        assertEquals(OK, client.set("client-foo", "bar").join());
+        assertEquals("bar", client.get("client-foo").join());
+        assertNull(client.get("client-missing").join());
+        assertEquals(1L, (long) client.incr("client-counter").join());
+        assertEquals(1L, (long) client.del("client-foo").join());
+        assertEquals(0L, (long) client.del("client-foo").join());
+
+        assertEquals(OK, client.zadd("client-set", 10, "ten").join());
+        assertEquals(OK, client.zadd("client-set", 5, "five").join());
+        assertEquals(2L, (long) client.zcard("client-set").join());
+        assertEquals(1L, (long) client.zrank("client-set", "ten").join());
+        assertNull(client.zrank("client-set", "absent").join());
+        assertArrayEquals(new Object[] {"five", "ten"},
+                client.zrange("client-set", 0, -1).join().toArray());
+        assertTrue(client.zrange("client-set", 5, 6).join().isEmpty());
+
+        assertEquals(1L, (long) client.hset("client-hash", "name", "ken").join());
+        assertEquals(5L, (long) client.hincrby("client-hash", "visits", 5).join());
+        assertEquals("ken", client.hget("client-hash", "name").join());
+        assertArrayEquals(new Object[] {"ken", null},
+                client.hmget("client-hash", "name", "absent").join().toArray());
+        assertEquals("5", client.hgetall("client-hash").join().get("visits"));
+        assertEquals(2L, (long) client.hdel("client-hash", "name", "visits").join());
+
+        try {
+            client.incr("client-set").join();
+            fail("should not be able to INCR sorted set");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof CachingStoreClientException);
+        }
+    }
+
+    @Test
+    public void testPipelinedConcurrentCallers() throws Exception {
+        int threads = 8;
+        int perThread = 2000;
+        long commandsBefore = 0;
+        long flushesBefore = 0;
+        for (int i = 0; i < 2; i++) {
+            commandsBefore += client.connection(i).commandsWritten();
+            flushesBefore += client.connection(i).flushes();
+        }
+
+        List<CompletableFuture<Long>> futures =
+                Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> callers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread caller = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perThread; i++) {
+                    futures.add(client.incr("client-pipelined"));
+                }
+            });
+            caller.start();
+            callers.add(caller);
+        }
+        start.countDown();
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        int count = threads * perThread;
+        assertEquals(Long.toString(count), client.get("client-pipelined").join());
+
+        long commands = -commandsBefore;
+        long flushes = -flushesBefore;
+        for (int i = 0; i < 2; i++) {
+            commands += client.connection(i).commandsWritten();
+            flushes += client.connection(i).flushes();
+        }
+        assertTrue(commands >= count);
+        // concurrent callers share socket writes
+        assertTrue("flushes " + flushes + " for " + commands + " commands",
+                flushes < commands);
+    }
+
+    @Test
+    public void testValuesLookingLikeErrors() {
+        assertEquals(OK, client.set("client-errors", "ERRORS").join());
+        assertEquals("ERRORS", client.get("client-errors").join());
+        assertEquals(1L, (long) client.hset("client-busy", "tool", "BUSYBOX").join());
+        assertEquals("BUSYBOX", client.hget("client-busy", "tool").join());
+    }
+
+    @Test
+    public void testReconnectsClosedConnection() throws Exception {
+        try (CachingStoreClient pooled = new CachingStoreClient("localhost", port, 2)) {
+            pooled.connection(0).close();
+            for (int i = 0; i < 10; i++) {
+                assertEquals(OK, pooled.set("client-reconnect", "v" + i).join());
+            }
+            for (int attempt = 0; pooled.connection(0) == null
+                    || !pooled.connection(0).isActive(); attempt++) {
+                assertTrue(attempt < 50);
+                Thread.sleep(100L);
+            }
+            assertEquals("v9", pooled.get("client-reconnect").join());
+        }
+    }
+
+    @Test
+    public void testPublishSubscribe() throws Exception {
+        try (Socket subscriber = new Socket("localhost", port)) {
+            OutputStream out = subscriber.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    subscriber.getInputStream(), StandardCharsets.UTF_8));
+
+            out.write("SUBSCRIBE news sports\nPSUBSCRIBE n*\n"
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            assertEquals("subscribe news 1", in.readLine());
+            assertEquals("subscribe sports 2", in.readLine());
+            assertEquals("psubscribe n* 3", in.readLine());
+
+            assertEquals(2L, (long) client.publish("news", "hello").join());
+            assertEquals("message news hello", in.readLine());
+            assertEquals("pmessage n* news hello", in.readLine());
+
+            assertEquals(0L, (long) client.publish("weather", "rain").join());
+
+            out.write("UNSUBSCRIBE\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            String first = in.readLine();
+            String second = in.readLine();
+            assertTrue(first.startsWith("unsubscribe "));
+            assertEquals("2", first.substring(first.lastIndexOf(' ') + 1));
+            assertEquals("1", second.substring(second.lastIndexOf(' ') + 1));
+            assertEquals(1L, (long) client.publish("news", "again").join());
+            assertEquals("pmessage n* news again", in.readLine());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.kenlai.MKLRedis.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.kenlai.MKLRedis.CachingStoreServer;
+import com.kenlai.MKLRedis.HashSlot;
+
+public class CachingStoreClusterTest {
+    private static int portA;
+    private static int portB;
+    private static CachingStoreClient client;
+
+    @BeforeClass
+    public static void startCluster() throws Exception {
+        // replies must be line terminated for the client to frame them
+        System.setProperty("addCrLf", "true");
+        portA = freePort();
+        portB = freePort();
+        System.setProperty("cluster", "localhost:" + portA + ",localhost:" + portB);
+        try {
+            start(new CachingStoreServer(portA));
+            start(new CachingStoreServer(portB));
+        } finally {
+            System.clearProperty("cluster");
+        }
+
+        for (int attempt = 0; client == null; attempt++) {
+            try {
+                client = new CachingStoreClient("localhost", portA, 2);
+            } catch (CachingStoreClientException e) {
+                if (attempt > 50) {
+                    throw e;
+                }
+                Thread.sleep(100L);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void stopClient() {
+        client.close();
+    }
+
+    @Test
+    public void testRedirects() {
+        for (int i = 0; i < 100; i++) {
+            assertEquals("OK", client.set("cluster-key" + i, "value" + i).join());
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("value" + i, client.get("cluster-key" + i).join());
+        }
+        assertTrue(client.dbsize().join() < 100);
+    }
+
+    @Test
+    public void testSlotMigration() throws Exception {
+        // a slot served by node A, holding one value of each type
+        String tag = "{migrate}";
+        int slot = HashSlot.of(tag);
+        assertTrue(slot < HashSlot.SLOTS / 2);
+        assertEquals("OK", client.set(tag + "string", "hello").join());
+        assertEquals("OK", client.set(tag + "expiring", "soon", 2).join());
+        assertEquals("OK", client.zadd(tag + "set", 1, "one").join());
+        assertEquals(1L, (long) client.hset(tag + "hash", "field", "value").join());
+        assertEquals(1L, (long) client.pfadd(tag + "hll", "a", "b").join());
+
+        String nodeA = "localhost:" + portA;
+        String nodeB = "localhost:" + portB;
+        try (Admin a = new Admin(portA); Admin b = new Admin(portB)) {
+            assertEquals("5", a.send("CLUSTER COUNTKEYSINSLOT " + slot));
+            assertEquals("OK", b.send("CLUSTER SETSLOT " + slot + " IMPORTING " + nodeA));
+            assertEquals("OK", a.send("CLUSTER SETSLOT " + slot + " MIGRATING " + nodeB));
+
+            assertEquals("1", a.send("MIGRATE localhost " + portB + " " + tag + "string"));
+            // moved keys are found through ASK, the rest are still on A
+            assertEquals("hello", client.get(tag + "string").join());
+            assertEquals(1L, (long) client.zcard(tag + "set").join());
+
+            String keys = a.send("CLUSTER GETKEYSINSLOT " + slot + " 10");
+            assertEquals("4", a.send("MIGRATE localhost " + portB + " " + keys));
+            assertEquals("0", a.send("CLUSTER COUNTKEYSINSLOT " + slot));
+
+            for (Admin node : new Admin[] {a, b}) {
+                assertEquals("OK", node.send("CLUSTER SETSLOT " + slot + " NODE " + nodeB));
+            }
+            assertEquals("MOVED " + slot + " " + nodeB, a.send("GET " + tag + "string"));
+        }
+
+        assertEquals("hello", client.get(tag + "string").join());
+        assertArrayEquals(new Object[] {"one"},
+                client.zrange(tag + "set", 0, -1).join().toArray());
+        assertEquals("value", client.hget(tag + "hash", "field").join());
+        assertEquals(2L, (long) client.pfcount(tag + "hll").join());
+
+        // the time to live moved along with the value
+        assertEquals("soon", client.get(tag + "expiring").join());
+        Thread.sleep(3000L);
+        assertNull(client.get(tag + "expiring").join());
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void start(CachingStoreServer server) {
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Plain connection for sending cluster administration commands.
+     */
+    private static class Admin implements AutoCloseable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final BufferedReader in;
+
+        Admin(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        String send(String command) throws IOException {
+            out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            return in.readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}